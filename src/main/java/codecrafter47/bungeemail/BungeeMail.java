@@ -8,17 +8,21 @@ import lombok.SneakyThrows;
 import net.md_5.bungee.api.CommandSender;
 import net.md_5.bungee.api.chat.BaseComponent;
 import net.md_5.bungee.api.chat.TextComponent;
+import net.md_5.bungee.api.config.ServerInfo;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.plugin.Plugin;
 import net.md_5.bungee.config.Configuration;
 import net.md_5.bungee.config.ConfigurationProvider;
 import net.md_5.bungee.config.YamlConfiguration;
 import org.bstats.bungeecord.Metrics;
+import org.bstats.charts.SingleLineChart;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
@@ -27,16 +31,33 @@ import java.util.regex.Pattern;
 public class BungeeMail extends Plugin {
 
     public static final UUID CONSOLE_UUID = new UUID(0, 0);
-    public static final List<String> CONFIG_OPTIONS_THAT_NEED_RELOAD = Arrays.asList("useMySQL", "enable_tab_complete", "mail_command", "mysql_hostname", "mysql_port", "mysql_database", "mysql_username", "mysql_password", "cleanup_enabled", "cleanup_threshold");
+    public static final List<String> CONFIG_OPTIONS_THAT_NEED_RELOAD = Arrays.asList("useMySQL", "useSQLite", "flatfile_pretty_print", "flatfile_inbox_cache_size", "enable_tab_complete", "mail_command", "server_switch_notify_delay", "mysql_hostname", "mysql_port", "mysql_database", "mysql_username", "mysql_password", "mysql_group_commit", "mysql_group_commit_max_delay", "mysql_group_commit_max_batch", "mysql_inbox_cache", "mysql_inbox_cache_expire", "mysql_replicas", "mysql_replica_max_lag", "mysql_read_your_writes_window", "mysql_circuit_breaker", "mysql_circuit_breaker_failure_rate", "mysql_circuit_breaker_slow_call", "mysql_circuit_breaker_open_time", "mysql_spool", "cleanup_enabled", "cleanup_threshold", "cleanup_archive", "rate_limit");
+
+    private static final int ARCHIVE_BATCH_SIZE = 1000;
+    // prefixes of targets addressing several players
+    private static final String SERVER_TARGET = "server:";
+    private static final String PERMISSION_TARGET = "perm:";
 
     Configuration config;
     Configuration startupConfig;
     Messages messages;
+    RateLimiter rateLimiter;
+    volatile MailArchive archive;
+    volatile MailScheduler mailScheduler;
+    ServerSwitchNotifier switchNotifier;
+    SlowOperationLog slowOperationLog;
 
     static BungeeMail instance;
 
     @Getter
-    private IStorageBackend storage;
+    private volatile IStorageBackend storage;
+    // the storage without the flight recorder wrapper, for checks of the backend type
+    private volatile IStorageBackend storageBackend;
+    private final CompletableFuture<Void> storageReady = new CompletableFuture<>();
+    @Getter
+    private MailService mailService;
+    private volatile boolean disabled = false;
+    private Metrics metrics;
     private Configuration defaultConfig;
 
     @SneakyThrows
@@ -61,48 +82,193 @@ public class BungeeMail extends Plugin {
         config = ConfigurationProvider.getProvider(YamlConfiguration.class).load(file, defaultConfig);
         startupConfig = config;
 
-        if (!config.getBoolean("useMySQL")) {
-            final FlatFileBackend fileBackend = new FlatFileBackend(this);
-            if (!fileBackend.readData()) {
-                getLogger().log(Level.SEVERE, "Failed to load mail data from file, plugin won't be enabled");
-                return;
-            }
-            // schedule saving
-            getProxy().getScheduler().schedule(this, fileBackend::saveData, 2, 2, TimeUnit.MINUTES);
-            storage = fileBackend;
-        } else {
-            storage = new MySQLBackend(this);
-        }
-
         messages = new Messages(config);
         instance = this;
 
+        rateLimiter = new RateLimiter(config);
+        slowOperationLog = new SlowOperationLog(this);
+        mailService = new MailService(this);
+        getProxy().getScheduler().schedule(this, rateLimiter::cleanup, 1, 1, TimeUnit.MINUTES);
+
         // Start metrics
-        new Metrics(this, 4570);
+        metrics = new Metrics(this, 4570);
+        metrics.addCustomChart(new SingleLineChart("rate_limited_commands", rateLimiter::getAndResetRejected));
 
         TabCompleteCache tabCompleteCache = null;
         if (config.getBoolean("enable_tab_complete")) {
-            tabCompleteCache = new TabCompleteCache(this, storage);
+            tabCompleteCache = new TabCompleteCache(this);
         }
 
+        // commands and listeners are available right away, they wait for the storage where necessary
         getProxy().getPluginManager().registerCommand(this, new MailCommand(config.getString("mail_command"), Permissions.COMMAND, this));
-        getProxy().getPluginManager().registerListener(this, new PlayerListener(this, tabCompleteCache));
+        switchNotifier = new ServerSwitchNotifier(this, config.getLong("server_switch_notify_delay", 1000));
+        whenStorageReady(() -> getProxy().getScheduler().schedule(this, switchNotifier::flush, 250, 250, TimeUnit.MILLISECONDS));
+        getProxy().getPluginManager().registerListener(this, new PlayerListener(this, tabCompleteCache, switchNotifier));
+
+        getProxy().getScheduler().runAsync(this, this::warmUp);
+    }
+
+    /**
+     * Opens the storage backend and loads the archive index. Runs in the background, so a large data set or a slow
+     * database doesn't delay the proxy startup.
+     */
+    private void warmUp() {
+        long startTime = System.currentTimeMillis();
+        IStorageBackend backend;
+        try {
+            backend = openStorage(getStorageType());
+        } catch (StorageException | RuntimeException e) {
+            getLogger().log(Level.SEVERE, "Failed to open the " + getStorageType() + " mail storage, plugin won't be enabled", e);
+            getProxy().getPluginManager().unregisterCommands(this);
+            getProxy().getPluginManager().unregisterListeners(this);
+            storageReady.completeExceptionally(e);
+            return;
+        }
+        if (disabled) {
+            // the proxy has been shut down in the meantime
+            backend.close();
+            return;
+        }
+        if (backend instanceof FlatFileBackend) {
+            // schedule saving
+            getProxy().getScheduler().schedule(this, ((FlatFileBackend) backend)::saveData, 2, 2, TimeUnit.MINUTES);
+        }
+        if (backend instanceof MySQLBackend) {
+            metrics.addCustomChart(new SingleLineChart("inbox_cache_hit_rate", ((MySQLBackend) backend)::getAndResetInboxCacheHitRate));
+        }
+
+        MailArchive archive = new MailArchive(new File(getDataFolder(), "archive"), getLogger());
+        try {
+            archive.load();
+            this.archive = archive;
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Failed to load the mail archive, archived mails won't be shown", e);
+        }
+
+        MailScheduler mailScheduler = new MailScheduler(this, new File(getDataFolder(), "scheduled.log"));
+        try {
+            mailScheduler.load();
+            this.mailScheduler = mailScheduler;
+            whenStorageReady(() -> getProxy().getScheduler().schedule(this, mailScheduler::tick, 1, 1, TimeUnit.SECONDS));
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Failed to load scheduled mails, they won't be delivered until the next restart", e);
+        }
 
         if (config.getBoolean("cleanup_enabled", false)) {
             getProxy().getScheduler().schedule(this, () -> {
+                long threshold = System.currentTimeMillis() - (1000L * 60L * 60L * 24L * config.getLong("cleanup_threshold", 7L));
                 try {
-                    storage.deleteOlder(System.currentTimeMillis() - (1000L * 60L * 60L * 24L * config.getLong("cleanup_threshold", 7L)), false);
-                } catch (StorageException e) {
+                    if (config.getBoolean("cleanup_archive", false) && this.archive != null) {
+                        archiveOlder(threshold);
+                    } else {
+                        storage.deleteOlder(threshold, false);
+                    }
+                } catch (StorageException | IOException e) {
                     getLogger().log(Level.WARNING, "Automatic database cleanup failed", e);
                 }
             }, 1, 120, TimeUnit.MINUTES);
         }
+
+        synchronized (this) {
+            if (disabled) {
+                // onDisable has run while the archive and scheduled mails were loaded, it didn't see the storage
+                backend.close();
+                return;
+            }
+            storageBackend = backend;
+            storage = MailEvents.AVAILABLE ? new RecordingStorageBackend(backend, getStorageType()) : backend;
+        }
+        getLogger().info("Mail storage (" + getStorageType() + ") ready after " + (System.currentTimeMillis() - startTime) + "ms");
+        storageReady.complete(null);
+    }
+
+    /**
+     * @return false while the storage is still being loaded after startup
+     */
+    boolean isStorageReady() {
+        return storage != null;
+    }
+
+    /**
+     * Get the storage backend itself. Unlike {@link #getStorage()} this is never wrapped for recording flight recorder
+     * events, use it to check the type of the backend.
+     */
+    IStorageBackend getStorageBackend() {
+        return storageBackend;
+    }
+
+    /**
+     * @return completed once the storage has been loaded, completed exceptionally if it could not be loaded
+     */
+    CompletableFuture<Void> getStorageReady() {
+        return storageReady;
+    }
+
+    /**
+     * Runs the action once the storage has been loaded, immediately if it already has been. The action runs on the
+     * thread that loaded the storage or on the calling thread.
+     */
+    void whenStorageReady(Runnable action) {
+        storageReady.thenRun(action).exceptionally(e -> {
+            if (isStorageReady()) {
+                getLogger().log(Level.SEVERE, "Unexpected exception", e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Moves read mails older than the given time from the storage to the archive. Mails are deleted from the
+     * storage only after they have been written to the archive.
+     */
+    void archiveOlder(long time) throws StorageException, IOException {
+        List<Message> batch;
+        do {
+            batch = storage.getOlderRead(time, ARCHIVE_BATCH_SIZE);
+            archive.append(batch);
+            storage.deleteMessages(batch);
+        } while (batch.size() >= ARCHIVE_BATCH_SIZE);
     }
 
     @Override
-    public void onDisable() {
-        if (storage != null && storage instanceof FlatFileBackend) {
-            ((FlatFileBackend) storage).saveData();
+    public synchronized void onDisable() {
+        disabled = true;
+        if (storage != null) {
+            storage.close();
+        }
+    }
+
+    /**
+     * @return the type of the storage backend selected in the config when the plugin was enabled
+     */
+    String getStorageType() {
+        if (startupConfig.getBoolean("useMySQL")) {
+            return "mysql";
+        } else if (startupConfig.getBoolean("useSQLite")) {
+            return "sqlite";
+        }
+        return "flatfile";
+    }
+
+    /**
+     * Creates a new storage backend.
+     *
+     * @param type one of flatfile, mysql or sqlite
+     */
+    IStorageBackend openStorage(String type) throws StorageException {
+        switch (type) {
+            case "mysql":
+                return new MySQLBackend(this);
+            case "sqlite":
+                return new SQLiteBackend(this);
+            case "flatfile":
+                FlatFileBackend fileBackend = new FlatFileBackend(this);
+                if (!fileBackend.readData()) {
+                    throw new StorageException("Failed to load mail data from file");
+                }
+                return fileBackend;
+            default:
+                throw new IllegalArgumentException("Unknown storage type " + type);
         }
     }
 
@@ -128,43 +294,148 @@ public class BungeeMail extends Plugin {
             getLogger().log(Level.SEVERE, "Unable to get mails for " + sender.getName() + " from storage", e);
             throw e;
         }
-        if (messages.isEmpty() && listIfNotAvailable) {
+        // the mails are shown now, notify about the next new mails even if there are as many of them
+        switchNotifier.listed(senderUUID);
+        // archived mails are only read once the player pages past the mails in the storage
+        int archived = listReadMessages && archive != null ? archive.count(senderUUID) : 0;
+        if (messages.isEmpty() && archived == 0 && listIfNotAvailable) {
             sender.sendMessage(ChatUtil.parseBBCode(noMessagesTemplate));
         }
-        if (messages.isEmpty()) return;
+        if (messages.isEmpty() && archived == 0) return;
         if (listReadMessages) {
             messages = Lists.reverse(messages);
         }
-        if (start >= messages.size()) start = 1;
-        int i = 1;
+        int total = messages.size() + archived;
+        if (start < 1 || start >= total) start = 1;
         int end = start + 9;
-        if (end >= messages.size()) end = messages.size();
+        if (end >= total) end = total;
+        // the mails on this page, archived mails follow the mails in the storage
+        List<Message> page = new ArrayList<>(messages.subList(Math.min(start - 1, messages.size()), Math.min(end, messages.size())));
+        if (end > messages.size()) {
+            SlowOperationLog.phase("archive");
+            int offset = Math.max(start - 1 - messages.size(), 0);
+            try {
+                page.addAll(archive.get(senderUUID, offset, end - messages.size() - offset));
+            } catch (IOException e) {
+                getLogger().log(Level.SEVERE, "Unable to read archived mails of " + sender.getName(), e);
+                throw new StorageException("Failed to read archived mails", e);
+            }
+        }
+        SlowOperationLog.rows(page.size());
+        SlowOperationLog.phase("render");
         List<BaseComponent> output = new ArrayList<>(Arrays.asList(ChatUtil.parseBBCode(headerTemplate.
                 replace("%start%", "" + start).replace("%end%", "" + end).
-                replace("%max%", "" + messages.size()).replace("%list%", listReadMessages ? "listall" : "list").
-                replace("%next%", "" + (end + 1)).replace("%visible%", messages.size() > 10 ? "" + 10 : ("" + messages.size())))));
-        for (Message message : messages) {
-            if (i >= start && i < start + 10) {
-                output.add(new TextComponent("\n"));
-                String messageTemplate = message.isRead() ? oldMessageTemplate : newMessageTemplate;
-                output.addAll(Arrays.asList(ChatUtil.parseBBCode(replaceTimePlaceholder(messageTemplate, message.getTime()).
-                        replace("%sender%", "[nobbcode]" + message.getSenderName() + "[/nobbcode]").
-                        replace("%id%", "" + message.getId()).
-                        replace("%message%", message.getMessage()))));
+                replace("%max%", "" + total).replace("%list%", listReadMessages ? "listall" : "list").
+                replace("%next%", "" + (end + 1)).replace("%visible%", total > 10 ? "" + 10 : ("" + total)))));
+        for (Message message : page) {
+            output.add(new TextComponent("\n"));
+            String messageTemplate = message.isRead() ? oldMessageTemplate : newMessageTemplate;
+            output.addAll(Arrays.asList(ChatUtil.parseBBCode(replaceTimePlaceholder(messageTemplate, message.getTime()).
+                    replace("%sender%", "[nobbcode]" + message.getSenderName() + "[/nobbcode]").
+                    replace("%id%", "" + message.getId()).
+                    replace("%message%", message.getMessage()))));
+            if (!message.isRead()) {
+                SlowOperationLog.phase("markRead");
                 try {
                     storage.markRead(message);
                 } catch (StorageException e) {
                     getLogger().log(Level.SEVERE, "Failed to mark mail as read", e);
                 }
+                SlowOperationLog.phase("render");
             }
-            i++;
         }
         if (!Strings.isNullOrEmpty(footerTemplate)) {
             output.add(new TextComponent("\n"));
             output.addAll(Arrays.asList(ChatUtil.parseBBCode(footerTemplate.
                     replace("%start%", "" + start).replace("%end%", "" + end).
-                    replace("%max%", "" + messages.size()).replace("%list%", listReadMessages ? "listall" : "list").
-                    replace("%next%", "" + (end + 1)).replace("%visible%", messages.size() > 10 ? "" + 10 : ("" + messages.size())))));
+                    replace("%max%", "" + total).replace("%list%", listReadMessages ? "listall" : "list").
+                    replace("%next%", "" + (end + 1)).replace("%visible%", total > 10 ? "" + 10 : ("" + total)))));
+        }
+        SlowOperationLog.phase("send");
+        sender.sendMessage(output.toArray(new BaseComponent[0]));
+    }
+
+    public void listSentMessages(CommandSender sender, int start) throws StorageException {
+        UUID senderUUID = sender instanceof ProxiedPlayer ? ((ProxiedPlayer) sender).getUniqueId() : CONSOLE_UUID;
+        int count;
+        List<Message> messages;
+        Map<UUID, String> names = new HashMap<>();
+        try {
+            count = getStorage().countSentMessages(senderUUID);
+            if (start < 1 || start > count) start = 1;
+            messages = getStorage().getSentMessages(senderUUID, start - 1, 10);
+            for (Message message : messages) {
+                if (!names.containsKey(message.getRecipient())) {
+                    names.put(message.getRecipient(), getStorage().getNameForUUID(message.getRecipient()));
+                }
+            }
+        } catch (StorageException e) {
+            getLogger().log(Level.SEVERE, "Unable to get sent mails of " + sender.getName() + " from storage", e);
+            throw e;
+        }
+        SlowOperationLog.rows(messages.size());
+        SlowOperationLog.phase("render");
+        if (messages.isEmpty()) {
+            sender.sendMessage(ChatUtil.parseBBCode(this.messages.noSentMessages));
+            return;
+        }
+        int end = start + messages.size() - 1;
+        List<BaseComponent> output = new ArrayList<>(Arrays.asList(ChatUtil.parseBBCode(this.messages.sentHeader.
+                replace("%start%", "" + start).replace("%end%", "" + end).replace("%max%", "" + count).
+                replace("%next%", "" + (end < count ? end + 1 : 1)))));
+        for (Message message : messages) {
+            output.add(new TextComponent("\n"));
+            String receiver = names.get(message.getRecipient());
+            output.addAll(Arrays.asList(ChatUtil.parseBBCode(replaceTimePlaceholder(this.messages.sentMessage, message.getTime()).
+                    replace("%receiver%", "[nobbcode]" + (receiver != null ? receiver : message.getRecipient().toString()) + "[/nobbcode]").
+                    replace("%status%", message.isRead() ? this.messages.sentRead : this.messages.sentUnread).
+                    replace("%message%", message.getMessage()))));
+        }
+        sender.sendMessage(output.toArray(new BaseComponent[0]));
+    }
+
+    public void searchMessages(CommandSender sender, String terms, int start) throws StorageException {
+        Set<String> tokens = SearchTokenizer.tokenizeQuery(terms);
+        String termsPlaceholder = "[nobbcode]" + String.join(" ", tokens) + "[/nobbcode]";
+        List<Message> messages = Collections.emptyList();
+        UUID senderUUID = sender instanceof ProxiedPlayer ? ((ProxiedPlayer) sender).getUniqueId() : CONSOLE_UUID;
+        if (!tokens.isEmpty()) {
+            try {
+                messages = getStorage().searchMessages(senderUUID, tokens);
+            } catch (StorageException e) {
+                getLogger().log(Level.SEVERE, "Unable to search mails of " + sender.getName(), e);
+                throw e;
+            }
+        }
+        SlowOperationLog.rows(messages.size());
+        SlowOperationLog.phase("render");
+        if (messages.isEmpty()) {
+            sender.sendMessage(ChatUtil.parseBBCode(this.messages.noSearchResults.replace("%terms%", termsPlaceholder)));
+            return;
+        }
+        // some of the new mails may be marked as read below
+        switchNotifier.listed(senderUUID);
+        if (start < 1 || start > messages.size()) start = 1;
+        int end = Math.min(start + 9, messages.size());
+        List<BaseComponent> output = new ArrayList<>(Arrays.asList(ChatUtil.parseBBCode(this.messages.searchHeader.
+                replace("%start%", "" + start).replace("%end%", "" + end).replace("%max%", "" + messages.size()).
+                replace("%next%", "" + (end < messages.size() ? end + 1 : 1)).replace("%terms%", termsPlaceholder))));
+        for (Message message : messages.subList(start - 1, end)) {
+            output.add(new TextComponent("\n"));
+            String messageTemplate = message.isRead() ? this.messages.oldMessage : this.messages.newMessage;
+            output.addAll(Arrays.asList(ChatUtil.parseBBCode(replaceTimePlaceholder(messageTemplate, message.getTime()).
+                    replace("%sender%", "[nobbcode]" + message.getSenderName() + "[/nobbcode]").
+                    replace("%id%", "" + message.getId()).
+                    replace("%message%", message.getMessage()))));
+            if (!message.isRead()) {
+                SlowOperationLog.phase("markRead");
+                try {
+                    storage.markRead(message);
+                } catch (StorageException e) {
+                    getLogger().log(Level.SEVERE, "Failed to mark mail as read", e);
+                }
+                SlowOperationLog.phase("render");
+            }
         }
         sender.sendMessage(output.toArray(new BaseComponent[0]));
     }
@@ -196,18 +467,27 @@ public class BungeeMail extends Plugin {
     }
 
     public void showLoginInfo(ProxiedPlayer player) {
-        String loginNewMailsTemplate = messages.loginNewMails;
         try {
-            List<Message> messages = getStorage().getMessagesFor(player.getUniqueId(), true);
-            if (!messages.isEmpty()) {
-                player.sendMessage(ChatUtil.parseBBCode(loginNewMailsTemplate.replace("%num%", "" + messages.size())));
-            }
+            showLoginInfo(player, getStorage().countMessages(player.getUniqueId(), true));
         } catch (StorageException e) {
             getLogger().log(Level.WARNING, "Failed to show mail notification to " + player.getName(), e);
         }
     }
 
+    /**
+     * Shows the login notification for a known number of new mails.
+     */
+    public void showLoginInfo(ProxiedPlayer player, int newMails) {
+        if (newMails > 0) {
+            player.sendMessage(ChatUtil.parseBBCode(messages.loginNewMails.replace("%num%", "" + newMails)));
+        }
+    }
+
     public void sendMail(CommandSender sender, String target, String text) {
+        if (isMulticast(target)) {
+            sendMulticast(sender, target, text);
+            return;
+        }
         long time = System.currentTimeMillis();
         UUID senderUUID = sender instanceof ProxiedPlayer ? ((ProxiedPlayer) sender).getUniqueId() : CONSOLE_UUID;
         UUID targetUUID = null;
@@ -215,6 +495,11 @@ public class BungeeMail extends Plugin {
             targetUUID = storage.getUUIDForName(target);
         } catch (StorageException e) {
             getLogger().log(Level.WARNING, "Unable to do a name to uuid lookup", e);
+            // the storage may be unavailable, mails to online players can still be spooled
+            ProxiedPlayer player = getProxy().getPlayer(target);
+            if (player != null) {
+                targetUUID = player.getUniqueId();
+            }
         }
         if (targetUUID == null) {
             sender.sendMessage(ChatUtil.parseBBCode(messages.unknownTarget));
@@ -226,8 +511,11 @@ public class BungeeMail extends Plugin {
             return;
         }
         try {
-            String message = ChatUtil.stripBBCode(text);
-            message = message.replaceAll("(?<link>(?:(https?)://)?([-\\w_\\.]{2,}\\.[a-z]{2,4})(/\\S*)?)", "[url]${link}[/url]");
+            String message = formatMessage(text);
+            if (!makeRoomFor(targetUUID)) {
+                sender.sendMessage(ChatUtil.parseBBCode(messages.mailboxFull.replace("%receiver%", target)));
+                return;
+            }
             storage.saveMessage(sender.getName(), senderUUID, targetUUID, message, false, time);
             sender.sendMessage(ChatUtil.parseBBCode(messages.messageSent
                     .replace("%receiver%", target)
@@ -243,6 +531,140 @@ public class BungeeMail extends Plugin {
         }
     }
 
+    /**
+     * @return true if the target addresses several players, see {@link #resolveMulticast(CommandSender, String)}
+     */
+    static boolean isMulticast(String target) {
+        String lowerCase = target.toLowerCase();
+        return target.indexOf(',') >= 0 || lowerCase.startsWith(SERVER_TARGET) || lowerCase.startsWith(PERMISSION_TARGET);
+    }
+
+    /**
+     * Sends the same mail to several players. The mails are saved together by the {@link MailService}.
+     */
+    private void sendMulticast(CommandSender sender, String target, String text) {
+        text = text.trim();
+        if (text.isEmpty()) {
+            sender.sendMessage(ChatUtil.parseBBCode(messages.emptyMail));
+            return;
+        }
+        Collection<UUID> recipients = resolveMulticast(sender, target);
+        if (recipients == null) {
+            return;
+        }
+        UUID senderUUID = sender instanceof ProxiedPlayer ? ((ProxiedPlayer) sender).getUniqueId() : CONSOLE_UUID;
+        List<MailService.Mail> mails = new ArrayList<>(recipients.size());
+        for (UUID recipient : recipients) {
+            mails.add(new MailService.Mail(recipient, text));
+        }
+        mailService.send(sender.getName(), senderUUID, mails).thenAccept(results -> {
+            int sent = Collections.frequency(results, MailService.Result.SENT);
+            int full = Collections.frequency(results, MailService.Result.MAILBOX_FULL);
+            int failed = Collections.frequency(results, MailService.Result.FAILED);
+            if (sent > 0) {
+                sender.sendMessage(ChatUtil.parseBBCode(messages.messageSentToMany.replace("%num%", Integer.toString(sent))));
+            }
+            if (full > 0) {
+                sender.sendMessage(ChatUtil.parseBBCode(messages.mailboxesFull.replace("%num%", Integer.toString(full))));
+            }
+            if (failed > 0) {
+                sender.sendMessage(ChatUtil.parseBBCode(messages.commandError.replace("%error%", failed + " mails could not be saved")));
+            }
+        });
+    }
+
+    /**
+     * Resolves the recipients of a mail to several players: a comma separated list of names, server:&lt;server&gt;
+     * for all players on a server or perm:&lt;permission&gt; for all online players with a permission. Names are
+     * looked up at once. Tells the sender if the target can't be resolved.
+     *
+     * @return the recipients, or null if the target can't be resolved
+     */
+    private Collection<UUID> resolveMulticast(CommandSender sender, String target) {
+        String lowerCase = target.toLowerCase();
+        if (lowerCase.startsWith(SERVER_TARGET) || lowerCase.startsWith(PERMISSION_TARGET)) {
+            if (!sender.hasPermission(Permissions.COMMAND_MULTICAST)) {
+                sender.sendMessage(ChatUtil.parseBBCode(messages.noPermission));
+                return null;
+            }
+            String value = target.substring(target.indexOf(':') + 1);
+            Set<UUID> recipients = new LinkedHashSet<>();
+            if (lowerCase.startsWith(SERVER_TARGET)) {
+                ServerInfo server = getProxy().getServerInfo(value);
+                if (server != null) {
+                    for (ProxiedPlayer player : server.getPlayers()) {
+                        recipients.add(player.getUniqueId());
+                    }
+                }
+            } else {
+                for (ProxiedPlayer player : getProxy().getPlayers()) {
+                    if (player.hasPermission(value)) {
+                        recipients.add(player.getUniqueId());
+                    }
+                }
+            }
+            if (recipients.isEmpty()) {
+                sender.sendMessage(ChatUtil.parseBBCode(messages.noRecipients.replace("%target%", "[nobbcode]" + target + "[/nobbcode]")));
+                return null;
+            }
+            return recipients;
+        }
+
+        Set<String> names = new TreeSet<>(CaseInsensitiveComparator.INSTANCE);
+        for (String name : target.split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
+        }
+        Map<String, UUID> uuids;
+        try {
+            uuids = storage.getUUIDsForNames(names);
+        } catch (StorageException e) {
+            getLogger().log(Level.WARNING, "Unable to do a name to uuid lookup", e);
+            sender.sendMessage(ChatUtil.parseBBCode(messages.commandError.replace("%error%", e.getMessage())));
+            return null;
+        }
+        List<String> unknown = new ArrayList<>();
+        for (String name : names) {
+            if (!uuids.containsKey(name)) {
+                unknown.add(name);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            sender.sendMessage(ChatUtil.parseBBCode(messages.unknownTargets.replace("%targets%", "[nobbcode]" + String.join(", ", unknown) + "[/nobbcode]")));
+            return null;
+        }
+        if (uuids.isEmpty()) {
+            sender.sendMessage(ChatUtil.parseBBCode(messages.noRecipients.replace("%target%", "[nobbcode]" + target + "[/nobbcode]")));
+            return null;
+        }
+        return new LinkedHashSet<>(uuids.values());
+    }
+
+    /**
+     * Checks the inbox quota of the recipient, evicting the oldest read mails if configured to do so.
+     *
+     * @param recipient the recipient of the new mail
+     * @return false if the mailbox of the recipient is full
+     */
+    private boolean makeRoomFor(UUID recipient) throws StorageException {
+        int maxUnread = config.getInt("quota.max_unread", 0);
+        if (maxUnread > 0 && storage.countMessages(recipient, true) >= maxUnread) {
+            return false;
+        }
+        int maxTotal = config.getInt("quota.max_total", 0);
+        if (maxTotal > 0) {
+            int excess = storage.countMessages(recipient, false) - maxTotal + 1;
+            if (excess > 0) {
+                if (!config.getBoolean("quota.evict_oldest_read", true)) {
+                    return false;
+                }
+                return storage.deleteOldestRead(recipient, excess) >= excess;
+            }
+        }
+        return true;
+    }
+
     public void sendMailToAll(CommandSender sender, String text) {
         text = text.trim();
         if (text.isEmpty()) {
@@ -251,24 +673,120 @@ public class BungeeMail extends Plugin {
         }
         long time = System.currentTimeMillis();
         UUID senderUUID = sender instanceof ProxiedPlayer ? ((ProxiedPlayer) sender).getUniqueId() : CONSOLE_UUID;
-        text = ChatUtil.stripBBCode(text);
-        text = text.replaceAll("(?<link>(?:(https?)://)?([-\\w_\\.]{2,}\\.[a-z]{2,4})(/\\S*)?)", "[url]${link}[/url]");
-        int count = 0;
+        text = formatMessage(text);
+        if (!new SendAllJob(this, sender, sender.getName(), senderUUID, text, time).start()) {
+            sender.sendMessage(ChatUtil.parseBBCode(messages.sendallRunning));
+        }
+    }
+
+    /**
+     * Schedules a mail to a player for delivery at the given time.
+     */
+    public void scheduleMail(CommandSender sender, String target, String text, long time) {
+        if (isMulticast(target)) {
+            Collection<UUID> recipients = resolveMulticast(sender, target);
+            if (recipients != null) {
+                scheduleMail(sender, recipients, text, time);
+            }
+            return;
+        }
+        UUID targetUUID;
         try {
-            count += storage.saveMessageToAll(sender.getName(), senderUUID, text, false, time);
-            storage.saveMessage(sender.getName(), senderUUID, CONSOLE_UUID, text, false, time);
-            count++;
+            targetUUID = storage.getUUIDForName(target);
         } catch (StorageException e) {
-            getLogger().log(Level.WARNING, "Unable to save mail", e);
+            getLogger().log(Level.WARNING, "Unable to do a name to uuid lookup", e);
             sender.sendMessage(ChatUtil.parseBBCode(messages.commandError.replace("%error%", e.getMessage())));
+            return;
+        }
+        if (targetUUID == null) {
+            sender.sendMessage(ChatUtil.parseBBCode(messages.unknownTarget));
+            return;
         }
-        sender.sendMessage(ChatUtil.parseBBCode(messages.messageSentToAll.replaceAll("%num%", Integer.toString(count))));
+        scheduleMail(sender, Collections.singleton(targetUUID), text, time);
+    }
 
-        if (count > 0) {
-            for (ProxiedPlayer player : getProxy().getPlayers()) {
-                player.sendMessage(ChatUtil.parseBBCode(messages.receivedNewMessage));
-            }
-            getProxy().getConsole().sendMessage(ChatUtil.parseBBCode(messages.receivedNewMessage));
+    /**
+     * Schedules a mail to all players for delivery at the given time.
+     */
+    public void scheduleMailToAll(CommandSender sender, String text, long time) {
+        text = text.trim();
+        if (text.isEmpty()) {
+            sender.sendMessage(ChatUtil.parseBBCode(messages.emptyMail));
+            return;
+        }
+        MailScheduler mailScheduler = getMailScheduler(sender);
+        if (mailScheduler == null) {
+            return;
+        }
+        UUID senderUUID = sender instanceof ProxiedPlayer ? ((ProxiedPlayer) sender).getUniqueId() : CONSOLE_UUID;
+        try {
+            mailScheduler.scheduleToAll(sender.getName(), senderUUID, formatMessage(text), time);
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Unable to schedule mail", e);
+            sender.sendMessage(ChatUtil.parseBBCode(messages.commandError.replace("%error%", e.getMessage())));
+            return;
+        }
+        sender.sendMessage(ChatUtil.parseBBCode(replaceTimePlaceholder(messages.messageScheduled, time)));
+    }
+
+    private void scheduleMail(CommandSender sender, Collection<UUID> recipients, String text, long time) {
+        text = text.trim();
+        if (text.isEmpty()) {
+            sender.sendMessage(ChatUtil.parseBBCode(messages.emptyMail));
+            return;
         }
+        MailScheduler mailScheduler = getMailScheduler(sender);
+        if (mailScheduler == null) {
+            return;
+        }
+        UUID senderUUID = sender instanceof ProxiedPlayer ? ((ProxiedPlayer) sender).getUniqueId() : CONSOLE_UUID;
+        try {
+            mailScheduler.schedule(sender.getName(), senderUUID, recipients, formatMessage(text), time);
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Unable to schedule mail", e);
+            sender.sendMessage(ChatUtil.parseBBCode(messages.commandError.replace("%error%", e.getMessage())));
+            return;
+        }
+        sender.sendMessage(ChatUtil.parseBBCode(replaceTimePlaceholder(messages.messageScheduled, time)));
+    }
+
+    /**
+     * @return the mail scheduler, or null after telling the sender if scheduled mails couldn't be loaded
+     */
+    private MailScheduler getMailScheduler(CommandSender sender) {
+        MailScheduler mailScheduler = this.mailScheduler;
+        if (mailScheduler == null) {
+            sender.sendMessage(ChatUtil.parseBBCode(messages.commandError.replace("%error%", "Scheduled mails are unavailable")));
+        }
+        return mailScheduler;
+    }
+
+    /**
+     * Strips formatting from the text of a mail and turns links into clickable links.
+     */
+    static String formatMessage(String text) {
+        String message = ChatUtil.stripBBCode(text);
+        return message.replaceAll("(?<link>(?:(https?)://)?([-\\w_\\.]{2,}\\.[a-z]{2,4})(/\\S*)?)", "[url]${link}[/url]");
+    }
+
+    /**
+     * Sends the new mail notification to the given players. The notification is parsed only once and sent to
+     * sendall_notify_batch_size players every 50ms, so notifying everyone doesn't happen in a single burst.
+     */
+    void broadcastNewMailNotification(Collection<ProxiedPlayer> players) {
+        final BaseComponent[] notification = ChatUtil.parseBBCode(messages.receivedNewMessage);
+        final Iterator<ProxiedPlayer> iterator = new ArrayList<>(players).iterator();
+        final int batchSize = Math.max(1, config.getInt("sendall_notify_batch_size", 100));
+        new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < batchSize && iterator.hasNext(); i++) {
+                    iterator.next().sendMessage(notification);
+                }
+                if (iterator.hasNext()) {
+                    getProxy().getScheduler().schedule(BungeeMail.this, this, 50, TimeUnit.MILLISECONDS);
+                }
+            }
+        }.run();
     }
 }
@@ -0,0 +1,122 @@
+package codecrafter47.bungeemail;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Stops using a resource that keeps failing, so callers fail fast instead of each waiting for a timeout.
+ * <p>
+ * The outcomes of the last {@link #WINDOW} calls are kept. Once at least {@link #MIN_CALLS} calls have been made and
+ * the given percentage of them failed, the circuit opens and {@link #allowRequest()} returns false. After the open
+ * time a single probe is allowed, the circuit closes again if it succeeds and stays open for another open time
+ * otherwise.
+ */
+class CircuitBreaker {
+    private static final int WINDOW = 20;
+    private static final int MIN_CALLS = 5;
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final Logger logger;
+    private final int failureRate;
+    private final long openNanos;
+
+    private final boolean[] failed = new boolean[WINDOW];
+    private int index = 0;
+    private int calls = 0;
+    private int failures = 0;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probing = false;
+
+    /**
+     * @param failureRate percentage of failed calls at which the circuit opens
+     * @param openMillis  time the circuit stays open before a probe is allowed
+     */
+    CircuitBreaker(String name, Logger logger, int failureRate, long openMillis) {
+        this.name = name;
+        this.logger = logger;
+        this.failureRate = failureRate;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    /**
+     * @return false if the call should fail immediately
+     */
+    synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt < openNanos) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probing = true;
+                return true;
+            default:
+                if (probing) {
+                    return false;
+                }
+                probing = true;
+                return true;
+        }
+    }
+
+    synchronized boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    synchronized void success() {
+        if (state == State.HALF_OPEN) {
+            logger.info(name + " is available again");
+            reset();
+            return;
+        }
+        add(false);
+    }
+
+    synchronized void failure() {
+        if (state == State.HALF_OPEN) {
+            open();
+            return;
+        }
+        add(true);
+        if (state == State.CLOSED && calls >= MIN_CALLS && failures * 100 >= failureRate * calls) {
+            logger.warning(name + " is unavailable, " + failures + " of the last " + calls + " calls failed. Failing fast for the next " + TimeUnit.NANOSECONDS.toSeconds(openNanos) + " seconds");
+            open();
+        }
+    }
+
+    private void add(boolean failure) {
+        if (calls == WINDOW) {
+            if (failed[index]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        failed[index] = failure;
+        if (failure) {
+            failures++;
+        }
+        index = (index + 1) % WINDOW;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        probing = false;
+    }
+
+    private void reset() {
+        state = State.CLOSED;
+        probing = false;
+        calls = 0;
+        failures = 0;
+        index = 0;
+    }
+}
@@ -0,0 +1,79 @@
+package codecrafter47.bungeemail;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.function.Predicate;
+
+/**
+ * Reports the outcome of a whole database call to a {@link CircuitBreaker}. The connection and the statements and
+ * result sets created from it are wrapped, the call fails if any of them throws an exception caused by the database
+ * being unavailable or a timeout, or if the connection is closed later than the slow call threshold after it has been
+ * requested. The outcome is recorded once the connection is closed.
+ */
+class CircuitBreakerConnection {
+    private final CircuitBreaker circuitBreaker;
+    private final Predicate<Throwable> isUnavailable;
+    private final long start;
+    private final long slowCallNanos;
+    // a connection is used by a single thread at a time
+    private boolean failed = false;
+    private boolean recorded = false;
+
+    private CircuitBreakerConnection(CircuitBreaker circuitBreaker, Predicate<Throwable> isUnavailable, long start, long slowCallNanos) {
+        this.circuitBreaker = circuitBreaker;
+        this.isUnavailable = isUnavailable;
+        this.start = start;
+        this.slowCallNanos = slowCallNanos;
+    }
+
+    /**
+     * @param isUnavailable tells whether an exception has been caused by the database being unavailable
+     * @param start         value of {@link System#nanoTime()} when the connection has been requested
+     */
+    static Connection wrap(Connection connection, CircuitBreaker circuitBreaker, Predicate<Throwable> isUnavailable, long start, long slowCallNanos) {
+        return (Connection) new CircuitBreakerConnection(circuitBreaker, isUnavailable, start, slowCallNanos).proxy(connection, Connection.class);
+    }
+
+    private Object proxy(Object target, Class<?> type) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> invoke(target, method, args));
+    }
+
+    private Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        Object result;
+        try {
+            result = method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLTimeoutException || isUnavailable.test(cause)) {
+                failed = true;
+            }
+            throw cause;
+        } finally {
+            if (target instanceof Connection && method.getName().equals("close")) {
+                record();
+            }
+        }
+        Class<?> type = method.getReturnType();
+        if (result != null && type.isInterface() && (Statement.class.isAssignableFrom(type) || type == ResultSet.class)) {
+            return proxy(result, type);
+        }
+        return result;
+    }
+
+    private void record() {
+        if (recorded) {
+            return;
+        }
+        recorded = true;
+        if (failed || System.nanoTime() - start > slowCallNanos) {
+            circuitBreaker.failure();
+        } else {
+            circuitBreaker.success();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package codecrafter47.bungeemail;
+
+import java.util.List;
+
+/**
+ * A batch of entries read from a storage backend, used to copy data between backends.
+ *
+ * @param <T> type of the entries
+ */
+public class ExportBatch<T> {
+    private final List<T> entries;
+    private final String checkpoint;
+
+    public ExportBatch(List<T> entries, String checkpoint) {
+        this.entries = entries;
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * @return the entries in this batch
+     */
+    public List<T> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return position after the last entry of this batch, pass it to the backend to get the next batch
+     */
+    public String getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @return true if there are no more entries
+     */
+    public boolean isLast() {
+        return entries.isEmpty();
+    }
+}
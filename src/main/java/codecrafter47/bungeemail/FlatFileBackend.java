@@ -3,255 +3,1228 @@ package codecrafter47.bungeemail;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Striped;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Stores mails in json files. Each recipient has its own file in the mails directory, the uuid map is stored in
+ * users.json. sent.json and retention.json hold the indexes of sent mails and of mail age. Inboxes are loaded when
+ * they are first accessed and evicted from memory once their owner is offline and the number of loaded inboxes
+ * exceeds flatfile_inbox_cache_size.
+ * <p>
+ * The index files are written after the inbox files. indexes.stale is created before an inbox file is written and
+ * removed once the index files match the inbox files again, if it exists on startup the indexes are rebuilt.
+ */
 public class FlatFileBackend implements IStorageBackend {
+    private final BungeeMail plugin;
     private final Logger logger;
-    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
-    private final File saveFile;
-    private final File tmpSaveFile;
-    private Data data;
-    private final ReadWriteLock mailLock = new ReentrantReadWriteLock();
-    private final ReadWriteLock uuidLock = new ReentrantReadWriteLock();
-    private final ReadWriteLock fileLock = new ReentrantReadWriteLock();
-    private boolean saveRequested = false;
+    private final Gson gson;
+    private final File legacySaveFile;
+    private final File legacyTmpSaveFile;
+    private final File usersFile;
+    private final File sentFile;
+    private final File retentionFile;
+    private final File indexesStaleFile;
+    private final File mailDirectory;
+    private final int inboxCacheSize;
+    private final ConcurrentMap<UUID, Inbox> inboxes = new ConcurrentHashMap<>();
+    // mails to inboxes that are not loaded, written to the inbox files by saveData, guarded by the load locks
+    private final ConcurrentMap<UUID, List<FlatFileMessage>> queuedMails = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, UUID> uuidMap = new ConcurrentHashMap<>();
+    // reverse of uuidMap, holds the most recent name of each uuid
+    private final ConcurrentMap<UUID, String> nameMap = new ConcurrentHashMap<>();
+    // held while an inbox is loaded from/ evicted to disk, so there is never more than one copy of an inbox
+    private final Striped<Lock> loadLocks = Striped.lock(64);
+    private final Lock saveLock = new ReentrantLock();
+    private final AtomicBoolean usersDirty = new AtomicBoolean(false);
+    private final FlatFileSentIndex sentIndex = new FlatFileSentIndex();
+    private final FlatFileRetentionIndex retentionIndex = new FlatFileRetentionIndex();
+    private final Object indexesStaleLock = new Object();
+    // whether indexes.stale exists, guarded by indexesStaleLock
+    private boolean indexesStale = false;
+    // number of operations that write inbox files directly and update the indexes afterwards
+    private final AtomicInteger pendingIndexUpdates = new AtomicInteger(0);
 
     public FlatFileBackend(BungeeMail plugin) {
+        this.plugin = plugin;
         logger = plugin.getLogger();
-        tmpSaveFile = new File(plugin.getDataFolder(), "data.json.tmp");
-        saveFile = new File(plugin.getDataFolder(), "data.json");
+        GsonBuilder gsonBuilder = new GsonBuilder();
+        if (plugin.config.getBoolean("flatfile_pretty_print", true)) {
+            gsonBuilder.setPrettyPrinting();
+        }
+        gson = gsonBuilder.create();
+        inboxCacheSize = plugin.config.getInt("flatfile_inbox_cache_size", 1000);
+        legacyTmpSaveFile = new File(plugin.getDataFolder(), "data.json.tmp");
+        legacySaveFile = new File(plugin.getDataFolder(), "data.json");
+        usersFile = new File(plugin.getDataFolder(), "users.json");
+        sentFile = new File(plugin.getDataFolder(), "sent.json");
+        retentionFile = new File(plugin.getDataFolder(), "retention.json");
+        indexesStaleFile = new File(plugin.getDataFolder(), "indexes.stale");
+        mailDirectory = new File(plugin.getDataFolder(), "mails");
     }
 
     /**
-     * Attempts to read the mail data from a file
+     * Attempts to read the uuid map from a file. Mails are read on demand. If there is a data.json file from an
+     * older version it is split into one file per recipient first.
      *
      * @return true on success
      */
     public boolean readData() {
-        fileLock.readLock().lock();
+        MailEvents.FlatFileLoad event = null;
+        if (MailEvents.AVAILABLE) {
+            event = new MailEvents.FlatFileLoad();
+            event.begin();
+        }
+        boolean success = false;
         try {
-            if (saveFile.exists()) {
-                try {
-                    FileInputStream fin = new FileInputStream(saveFile);
-                    Reader reader = new InputStreamReader(fin, Charsets.UTF_8);
-                    data = gson.fromJson(reader, Data.class);
-                    reader.close();
-                    return true;
-                } catch (Exception ex) {
-                    logger.log(Level.WARNING, "Failed to read data.gson", ex);
-                    data = new Data();
-                }
-            } else if (tmpSaveFile.exists()) {
-                if (tmpSaveFile.renameTo(saveFile)) {
-                    return readData();
+            success = readFiles();
+            return success;
+        } finally {
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.users = uuidMap.size();
+                    event.bytesRead = usersFile.length() + sentFile.length() + retentionFile.length();
+                    event.success = success;
+                    event.commit();
                 }
-            } else {
+            }
+        }
+    }
+
+    private boolean readFiles() {
+        if (!mailDirectory.exists() && !mailDirectory.mkdirs()) {
+            logger.severe("Failed to create " + mailDirectory);
+            return false;
+        }
+        synchronized (indexesStaleLock) {
+            indexesStale = indexesStaleFile.exists();
+        }
+        if (!usersFile.exists() && (legacySaveFile.exists() || legacyTmpSaveFile.exists())) {
+            if (!migrateLegacyData()) {
+                return false;
+            }
+        }
+        if (usersFile.exists()) {
+            try (JsonReader in = gson.newJsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(usersFile), Charsets.UTF_8)))) {
+                readUUIDMap(in, uuidMap, new HashMap<>());
+            } catch (Exception ex) {
+                logger.log(Level.WARNING, "Failed to read users.json", ex);
+                return false;
+            }
+            for (Map.Entry<String, UUID> entry : uuidMap.entrySet()) {
+                nameMap.put(entry.getValue(), entry.getKey());
+            }
+        }
+        boolean buildSentIndex;
+        boolean buildRetentionIndex;
+        synchronized (indexesStaleLock) {
+            // an inbox file may have been written after the index files
+            buildSentIndex = indexesStale || !sentFile.exists();
+            buildRetentionIndex = indexesStale || !retentionFile.exists();
+        }
+        try {
+            if (!buildSentIndex) {
+                try (JsonReader in = gson.newJsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(sentFile), Charsets.UTF_8)))) {
+                    sentIndex.read(in);
+                }
+            }
+            if (!buildRetentionIndex) {
+                try (JsonReader in = gson.newJsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(retentionFile), Charsets.UTF_8)))) {
+                    retentionIndex.read(in);
+                }
+            }
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Failed to read the mail indexes", ex);
+            return false;
+        }
+        if (buildSentIndex || buildRetentionIndex) {
+            // missing or stale, build the indexes from the inbox files
+            try {
+                for (File bucket : listBuckets()) {
+                    for (UUID recipient : listRecipients(bucket)) {
+                        List<FlatFileMessage> mails = readInboxFile(recipient);
+                        if (buildRetentionIndex) {
+                            retentionIndex.update(recipient, mails);
+                        }
+                        for (FlatFileMessage mail : buildSentIndex ? mails : Collections.<FlatFileMessage>emptyList()) {
+                            if (mail.getSenderUUID() != null) {
+                                sentIndex.append(mail.getSenderUUID(), recipient, mail.getTime());
+                            }
+                        }
+                    }
+                }
+                sentIndex.sort();
+                // make sure the index files are created even if there are no mails
+                sentIndex.dirty.set(true);
+                retentionIndex.dirty.set(true);
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Failed to build the mail indexes", ex);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts the data.json file used by older versions to the sharded layout.
+     *
+     * @return true on success
+     */
+    private boolean migrateLegacyData() {
+        if (!legacySaveFile.exists() && !legacyTmpSaveFile.renameTo(legacySaveFile)) {
+            return false;
+        }
+        try {
+            Data data;
+            try (JsonReader in = gson.newJsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(legacySaveFile), Charsets.UTF_8)))) {
+                data = readLegacyData(in);
+            }
+            if (data == null) {
                 data = new Data();
-                return true;
             }
+            int count = 0;
+            for (Map.Entry<UUID, List<FlatFileMessage>> entry : data.mails.entrySet()) {
+                writeInboxFile(entry.getKey(), entry.getValue());
+                count += entry.getValue().size();
+            }
+            writeUsersFile(data.uuidMap);
+            Files.move(legacySaveFile.toPath(), new File(plugin.getDataFolder(), "data.json.migrated").toPath(), StandardCopyOption.REPLACE_EXISTING);
+            logger.info("Converted data.json to the new storage format (" + count + " mails, " + data.mails.size() + " inboxes)");
+            return true;
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Failed to convert data.json", ex);
             return false;
-        } finally {
-            fileLock.readLock().unlock();
         }
     }
 
     /**
-     * Attempts to save the mail data to a file
+     * Attempts to save the mail data to disk and evicts inboxes of offline players if there are more than
+     * flatfile_inbox_cache_size inboxes in memory.
+     * <p>
+     * Only the inboxes that have been modified are written. Each of them is copied while holding its lock,
+     * serializing and writing the copy happens without blocking any of the methods that modify the data set. Mails
+     * queued for inboxes that are not loaded are added to their inbox files, all mails of an inbox at once.
      */
     public void saveData() {
-        if (saveRequested) {
-            saveRequested = false;
-            mailLock.readLock().lock();
-            uuidLock.readLock().lock();
-            fileLock.writeLock().lock();
+        MailEvents.FlatFileSave event = null;
+        if (MailEvents.AVAILABLE) {
+            event = new MailEvents.FlatFileSave();
+            event.begin();
+        }
+        long lockStart = System.nanoTime();
+        saveLock.lock();
+        long lockWait = System.nanoTime() - lockStart;
+        int inboxesWritten = 0;
+        long bytesWritten = 0;
+        boolean inboxesSaved = true;
+        try {
+            for (Map.Entry<UUID, Inbox> entry : inboxes.entrySet()) {
+                Inbox inbox = entry.getValue();
+                if (!inbox.dirty.compareAndSet(true, false)) {
+                    continue;
+                }
+                List<FlatFileMessage> snapshot;
+                inbox.lock.readLock().lock();
+                try {
+                    snapshot = new ArrayList<>(inbox.mails);
+                } finally {
+                    inbox.lock.readLock().unlock();
+                }
+                try {
+                    bytesWritten += writeInboxFile(entry.getKey(), snapshot);
+                    inboxesWritten++;
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Failed to save mails of " + entry.getKey() + " to disk", ex);
+                    // try again next time
+                    inbox.dirty.set(true);
+                    inboxesSaved = false;
+                }
+            }
+            for (UUID recipient : queuedMails.keySet()) {
+                Lock loadLock = loadLocks.get(recipient);
+                loadLock.lock();
+                try {
+                    // the inbox takes the queued mails when it is loaded
+                    if (queuedMails.containsKey(recipient)) {
+                        bytesWritten += writeUnloadedInbox(recipient, readUnloadedInbox(recipient));
+                        inboxesWritten++;
+                    }
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Failed to save mails of " + recipient + " to disk", ex);
+                    // the mails stay queued, try again next time
+                    inboxesSaved = false;
+                } finally {
+                    loadLock.unlock();
+                }
+            }
+            if (sentIndex.dirty.compareAndSet(true, false)) {
+                try {
+                    bytesWritten += writeAtomically(sentFile, sentIndex::write);
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Failed to save sent.json to disk", ex);
+                    sentIndex.dirty.set(true);
+                }
+            }
+            if (retentionIndex.dirty.compareAndSet(true, false)) {
+                try {
+                    bytesWritten += writeAtomically(retentionFile, retentionIndex::write);
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Failed to save retention.json to disk", ex);
+                    retentionIndex.dirty.set(true);
+                }
+            }
+            if (usersDirty.compareAndSet(true, false)) {
+                try {
+                    bytesWritten += writeUsersFile(new HashMap<>(uuidMap));
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Failed to save users.json to disk", ex);
+                    usersDirty.set(true);
+                }
+            }
+            trimCache();
+            if (inboxesSaved) {
+                clearIndexesStale();
+            }
+        } finally {
+            saveLock.unlock();
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.inboxes = inboxesWritten;
+                    event.bytesWritten = bytesWritten;
+                    event.lockWait = lockWait;
+                    event.loadedInboxes = inboxes.size();
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes indexes.stale if the index files include all changes of the inbox files. Index updates mark the index as
+     * dirty, so this is the case if no index has been modified since it has been written and no inbox file is being
+     * written without having updated the indexes yet.
+     */
+    private void clearIndexesStale() {
+        synchronized (indexesStaleLock) {
+            if (!indexesStale || pendingIndexUpdates.get() != 0 || sentIndex.dirty.get() || retentionIndex.dirty.get()) {
+                return;
+            }
             try {
-                if (tmpSaveFile.exists()) {
-                    if (!tmpSaveFile.delete()) return;
+                Files.deleteIfExists(indexesStaleFile.toPath());
+                indexesStale = false;
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Failed to delete " + indexesStaleFile, ex);
+            }
+        }
+    }
+
+    /**
+     * Creates indexes.stale unless it exists already. Must be called before an inbox file is written.
+     */
+    private void markIndexesStale() throws IOException {
+        synchronized (indexesStaleLock) {
+            if (!indexesStale) {
+                if (!indexesStaleFile.createNewFile() && !indexesStaleFile.exists()) {
+                    throw new IOException("Failed to create " + indexesStaleFile);
                 }
-                if (!tmpSaveFile.createNewFile()) return;
-                Writer writer = new OutputStreamWriter(Files.newOutputStream(tmpSaveFile.toPath()), Charsets.UTF_8);
-                gson.toJson(data, writer);
-                writer.close();
-                if (saveFile.exists()) {
-                    if (!saveFile.delete()) return;
+                indexesStale = true;
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used inboxes of offline players until at most flatfile_inbox_cache_size inboxes
+     * are loaded.
+     */
+    private void trimCache() {
+        int excess = inboxes.size() - inboxCacheSize;
+        if (excess <= 0) {
+            return;
+        }
+        List<Map.Entry<UUID, Inbox>> candidates = new ArrayList<>();
+        for (Map.Entry<UUID, Inbox> entry : inboxes.entrySet()) {
+            if (!isOnline(entry.getKey())) {
+                candidates.add(entry);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+        for (int i = 0; i < excess && i < candidates.size(); i++) {
+            evict(candidates.get(i).getKey(), candidates.get(i).getValue());
+        }
+    }
+
+    private boolean isOnline(UUID uuid) {
+        return BungeeMail.CONSOLE_UUID.equals(uuid) || plugin.getProxy().getPlayer(uuid) != null;
+    }
+
+    private void evict(UUID recipient, Inbox inbox) {
+        Lock loadLock = loadLocks.get(recipient);
+        loadLock.lock();
+        inbox.lock.writeLock().lock();
+        try {
+            if (inbox.dirty.get()) {
+                writeInboxFile(recipient, inbox.mails);
+                inbox.dirty.set(false);
+            }
+            inbox.evicted = true;
+            inboxes.remove(recipient, inbox);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Failed to save mails of " + recipient + " to disk", ex);
+        } finally {
+            inbox.lock.writeLock().unlock();
+            loadLock.unlock();
+        }
+    }
+
+    /**
+     * Get the inbox of a player, loading it from disk if necessary.
+     */
+    private Inbox getInbox(UUID recipient) throws StorageException {
+        Inbox inbox = inboxes.get(recipient);
+        if (inbox == null) {
+            Lock loadLock = loadLocks.get(recipient);
+            loadLock.lock();
+            try {
+                inbox = inboxes.get(recipient);
+                if (inbox == null) {
+                    SlowOperationLog.phase("readInboxFile");
+                    inbox = new Inbox();
+                    for (FlatFileMessage mail : readUnloadedInbox(recipient)) {
+                        inbox.add(mail);
+                    }
+                    if (queuedMails.remove(recipient) != null) {
+                        inbox.dirty.set(true);
+                    }
+                    inboxes.put(recipient, inbox);
                 }
-                tmpSaveFile.renameTo(saveFile);
             } catch (IOException ex) {
-                logger.log(Level.WARNING, "Failed to save file to disk", ex);
+                throw new StorageException("Failed to load mails of " + recipient, ex);
+            } finally {
+                loadLock.unlock();
+            }
+        }
+        inbox.lastAccess = System.currentTimeMillis();
+        return inbox;
+    }
+
+    /**
+     * Get the inbox of a player and lock it. The caller is responsible for releasing the lock.
+     *
+     * @param write whether to acquire the write lock instead of the read lock
+     */
+    private Inbox lockInbox(UUID recipient, boolean write) throws StorageException {
+        while (true) {
+            Inbox inbox = getInbox(recipient);
+            Lock lock = write ? inbox.lock.writeLock() : inbox.lock.readLock();
+            SlowOperationLog.phase("lock");
+            MailEvents.InboxLock event = null;
+            if (MailEvents.AVAILABLE) {
+                event = new MailEvents.InboxLock();
+                event.begin();
+            }
+            lock.lock();
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.recipient = recipient.toString();
+                    event.write = write;
+                    event.commit();
+                }
+            }
+            SlowOperationLog.phase("inbox");
+            if (!inbox.evicted) {
+                return inbox;
+            }
+            // evicted concurrently, load it again
+            lock.unlock();
+        }
+    }
+
+    private File getInboxFile(UUID recipient) {
+        String name = recipient.toString();
+        return new File(new File(mailDirectory, name.substring(0, 2)), name + ".json");
+    }
+
+    /**
+     * Lists the bucket directories of the mails directory, sorted by name.
+     */
+    private List<File> listBuckets() {
+        File[] buckets = mailDirectory.listFiles(File::isDirectory);
+        if (buckets == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(buckets);
+        return Arrays.asList(buckets);
+    }
+
+    /**
+     * Lists the recipients that have an inbox file in the given bucket, sorted by their string representation.
+     */
+    private List<UUID> listRecipients(File bucket) {
+        List<UUID> recipients = new ArrayList<>();
+        String[] files = bucket.list((dir, name) -> name.endsWith(".json"));
+        if (files == null) {
+            return recipients;
+        }
+        Arrays.sort(files);
+        for (String file : files) {
+            try {
+                recipients.add(UUID.fromString(file.substring(0, file.length() - 5)));
+            } catch (IllegalArgumentException ignored) {
+                // not an inbox file
+            }
+        }
+        return recipients;
+    }
+
+    /**
+     * Get a copy of the mails of a player without adding the inbox to the cache.
+     */
+    private List<FlatFileMessage> readMails(UUID recipient) throws IOException {
+        Lock loadLock = loadLocks.get(recipient);
+        loadLock.lock();
+        try {
+            Inbox inbox = inboxes.get(recipient);
+            if (inbox == null) {
+                return readUnloadedInbox(recipient);
+            }
+            // loaded inboxes can't be evicted while we hold the load lock
+            inbox.lock.readLock().lock();
+            try {
+                return new ArrayList<>(inbox.mails);
             } finally {
-                fileLock.writeLock().unlock();
-                uuidLock.readLock().unlock();
-                mailLock.readLock().unlock();
+                inbox.lock.readLock().unlock();
             }
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the mails of an inbox that is not loaded, including those that are queued for it. The caller must hold
+     * the load lock of the recipient.
+     */
+    private List<FlatFileMessage> readUnloadedInbox(UUID recipient) throws IOException {
+        List<FlatFileMessage> mails = readInboxFile(recipient);
+        List<FlatFileMessage> queued = queuedMails.get(recipient);
+        if (queued != null) {
+            mails.addAll(queued);
         }
+        return mails;
     }
 
     /**
-     * called by all methods of this class that modify the data set to request a save.
+     * Replaces the mails of an inbox that is not loaded, including those that are queued for it. The caller must hold
+     * the load lock of the recipient.
+     *
+     * @return the number of bytes written
      */
-    private void requestSave() {
-        saveRequested = true;
+    private long writeUnloadedInbox(UUID recipient, List<FlatFileMessage> mails) throws IOException {
+        long bytes = writeInboxFile(recipient, mails);
+        queuedMails.remove(recipient);
+        return bytes;
+    }
+
+    private List<FlatFileMessage> readInboxFile(UUID recipient) throws IOException {
+        File file = getInboxFile(recipient);
+        List<FlatFileMessage> mails = new ArrayList<>();
+        if (!file.exists()) {
+            return mails;
+        }
+        try (JsonReader in = gson.newJsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8)))) {
+            Map<String, UUID> uuidCache = new HashMap<>();
+            in.beginArray();
+            while (in.hasNext()) {
+                FlatFileMessage mail = readMessage(in, uuidCache);
+                if (mail != null) {
+                    mails.add(mail);
+                }
+            }
+            in.endArray();
+        } catch (IllegalStateException | NumberFormatException ex) {
+            throw new IOException("Malformed inbox file " + file, ex);
+        }
+        return mails;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private long writeInboxFile(UUID recipient, List<FlatFileMessage> mails) throws IOException {
+        markIndexesStale();
+        File file = getInboxFile(recipient);
+        if (mails.isEmpty()) {
+            Files.deleteIfExists(file.toPath());
+            return 0;
+        }
+        return writeAtomically(file, out -> {
+            out.beginArray();
+            for (FlatFileMessage mail : mails) {
+                writeMessage(out, mail);
+            }
+            out.endArray();
+        });
+    }
+
+    private long writeUsersFile(Map<String, UUID> uuidMap) throws IOException {
+        return writeAtomically(usersFile, out -> writeUUIDMap(out, uuidMap));
+    }
+
+    /**
+     * Writes a json file to a temporary file, syncs it to disk and atomically moves it to its target location, so
+     * a crash never leaves a partially written file behind.
+     *
+     * @return the number of bytes written
+     */
+    private long writeAtomically(File file, JsonWriterAction action) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent);
+        }
+        File tmpFile = new File(parent, file.getName() + ".tmp");
+        long bytes;
+        try (FileOutputStream fout = new FileOutputStream(tmpFile)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(fout, Charsets.UTF_8));
+            JsonWriter out = gson.newJsonWriter(writer);
+            action.write(out);
+            out.flush();
+            fout.getFD().sync();
+            bytes = fout.getChannel().position();
+        }
+        try {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return bytes;
     }
 
     @Override
-    public List<Message> getMessagesFor(UUID uuid, boolean onlyNew) {
-        mailLock.readLock().lock();
+    public void loadInbox(UUID uuid) throws StorageException {
+        getInbox(uuid);
+    }
+
+    @Override
+    public void unloadInbox(UUID uuid) {
+        // inboxes of offline players are written to disk and evicted by saveData
+    }
+
+    @Override
+    public List<Message> searchMessages(UUID recipient, Set<String> tokens) throws StorageException {
+        Inbox inbox = lockInbox(recipient, true);
+        List<FlatFileMessage> mails;
         try {
-            ArrayList<Message> messages = new ArrayList<>();
-            for (Message message : data.data) {
-                if (message.getRecipient().equals(uuid) && (!message.isRead() || !onlyNew)) messages.add(message);
+            mails = inbox.search(tokens);
+        } finally {
+            inbox.lock.writeLock().unlock();
+        }
+        mails.sort(Comparator.comparingLong(FlatFileMessage::getTime).thenComparingLong(FlatFileMessage::getId).reversed());
+        return new ArrayList<>(mails);
+    }
+
+    @Override
+    public List<Message> getMessagesFor(UUID uuid, boolean onlyNew) throws StorageException {
+        ArrayList<Message> messages = new ArrayList<>();
+        Inbox inbox = lockInbox(uuid, false);
+        try {
+            for (Message message : inbox.mails) {
+                if (!message.isRead() || !onlyNew) messages.add(message);
             }
             return messages;
         } finally {
-            mailLock.readLock().unlock();
+            inbox.lock.readLock().unlock();
         }
     }
 
     @Override
-    public Message saveMessage(String senderName, UUID senderUUID, UUID recipient, String message, boolean read, long time) {
-        mailLock.writeLock().lock();
+    public Message saveMessage(String senderName, UUID senderUUID, UUID recipient, String message, boolean read, long time) throws StorageException {
+        Inbox inbox = lockInbox(recipient, true);
         try {
             FlatFileMessage mail = new FlatFileMessage(time, read, message, recipient, senderUUID, senderName);
-            data.data.add(mail);
-            requestSave();
+            inbox.add(mail);
+            inbox.dirty.set(true);
+            sentIndex.add(senderUUID, recipient, time);
+            retentionIndex.added(recipient, time, read);
             return mail;
         } finally {
-            mailLock.writeLock().unlock();
+            inbox.lock.writeLock().unlock();
         }
     }
 
+    /**
+     * Inboxes that are not loaded are not added to the cache, the mails are added to their files by
+     * {@link #saveData()}.
+     */
     @Override
-    public int saveMessageToAll(String senderName, UUID senderUUID, String message, boolean read, long time) {
-        Collection<UUID> targets = getAllKnownUUIDs();
-        mailLock.writeLock().lock();
+    public int saveMessageToAll(String senderName, UUID senderUUID, String message, boolean read, long time) throws StorageException {
+        return saveMessages(senderName, senderUUID, getAllKnownUUIDs(), message, read, time);
+    }
+
+    /**
+     * Inboxes that are not loaded are not added to the cache, the mails are added to their files by
+     * {@link #saveData()}.
+     */
+    @Override
+    public int saveMessages(String senderName, UUID senderUUID, Collection<UUID> recipients, String message, boolean read, long time) throws StorageException {
+        for (UUID recipient : recipients) {
+            addMails(recipient, Collections.singletonList(new FlatFileMessage(time, read, message, recipient, senderUUID, senderName)));
+            sentIndex.add(senderUUID, recipient, time);
+        }
+        return recipients.size();
+    }
+
+    /**
+     * Adds mails to the inbox of a player. If the inbox is not loaded the mails are queued until the next call to
+     * {@link #saveData()}.
+     */
+    private void addMails(UUID recipient, List<FlatFileMessage> mails) {
+        Lock loadLock = loadLocks.get(recipient);
+        loadLock.lock();
         try {
-            for (UUID recipient : targets) {
-                FlatFileMessage mail = new FlatFileMessage(time, read, message, recipient, senderUUID, senderName);
-                data.data.add(mail);
+            Inbox inbox = inboxes.get(recipient);
+            if (inbox == null) {
+                queuedMails.computeIfAbsent(recipient, uuid -> new ArrayList<>()).addAll(mails);
+            } else {
+                // loaded inboxes can't be evicted while we hold the load lock
+                inbox.lock.writeLock().lock();
+                try {
+                    for (FlatFileMessage mail : mails) {
+                        inbox.add(mail);
+                    }
+                    inbox.dirty.set(true);
+                } finally {
+                    inbox.lock.writeLock().unlock();
+                }
+            }
+            for (FlatFileMessage mail : mails) {
+                retentionIndex.added(recipient, mail.getTime(), mail.isRead());
             }
-            requestSave();
-            return targets.size();
         } finally {
-            mailLock.writeLock().unlock();
+            loadLock.unlock();
         }
     }
 
     @Override
-    public void markRead(Message message) {
+    public void markRead(Message message) throws StorageException {
         Preconditions.checkArgument(message instanceof FlatFileMessage);
-        mailLock.writeLock().lock();
+        Inbox inbox = lockInbox(message.getRecipient(), true);
         try {
-            ((FlatFileMessage) message).setRead(true);
-            requestSave();
+            // the inbox may have been evicted and loaded again since the caller got the mail
+            FlatFileMessage mail = null;
+            for (FlatFileMessage candidate : inbox.mails) {
+                if (candidate == message) {
+                    mail = candidate;
+                    break;
+                }
+                if (mail == null && !candidate.isRead() && isSameMail(candidate, message)) {
+                    mail = candidate;
+                }
+            }
+            if (mail != null && !mail.isRead()) {
+                mail.setRead(true);
+                ((FlatFileMessage) message).setRead(true);
+                inbox.unread--;
+                inbox.dirty.set(true);
+                retentionIndex.markedRead(mail.getRecipient(), mail.getTime());
+            }
         } finally {
-            mailLock.writeLock().unlock();
+            inbox.lock.writeLock().unlock();
         }
     }
 
     @Override
-    public void delete(Message message) {
+    public void delete(Message message) throws StorageException {
         Preconditions.checkArgument(message instanceof FlatFileMessage);
-        mailLock.writeLock().lock();
+        Inbox inbox = lockInbox(message.getRecipient(), true);
         try {
-            data.data.remove(message);
-            requestSave();
+            if (inbox.removeIf(removing(message::equals))) {
+                inbox.dirty.set(true);
+                retentionIndex.update(message.getRecipient(), inbox.mails);
+            }
         } finally {
-            mailLock.writeLock().unlock();
+            inbox.lock.writeLock().unlock();
         }
     }
 
     @Override
-    public boolean delete(long id, UUID recipient) {
-        boolean deleted = false;
-        mailLock.writeLock().lock();
+    public boolean delete(long id, UUID recipient) throws StorageException {
+        boolean deleted;
+        Inbox inbox = lockInbox(recipient, true);
         try {
-            Iterator<FlatFileMessage> iterator = data.data.iterator();
-            while (iterator.hasNext()) {
-                Message message = iterator.next();
-                if (message.getId() == id && message.getRecipient().equals(recipient)) {
-                    deleted = true;
-                    iterator.remove();
-                }
+            deleted = inbox.removeIf(removing(message -> message.getId() == id));
+            if (deleted) {
+                inbox.dirty.set(true);
+                retentionIndex.update(recipient, inbox.mails);
             }
-            requestSave();
         } finally {
-            mailLock.writeLock().unlock();
+            inbox.lock.writeLock().unlock();
         }
         return deleted;
     }
 
     @Override
-    public void deleteOlder(long time, boolean deleteUnread) {
-        mailLock.writeLock().lock();
+    public int countMessages(UUID recipient, boolean onlyNew) throws StorageException {
+        Inbox inbox = lockInbox(recipient, false);
         try {
-            data.data.removeIf(message -> message.getTime() < time && (deleteUnread || message.isRead()));
-            requestSave();
+            return onlyNew ? inbox.unread : inbox.mails.size();
         } finally {
-            mailLock.writeLock().unlock();
+            inbox.lock.readLock().unlock();
         }
     }
 
+    /**
+     * Inboxes that are not loaded are counted on disk, they are not added to the cache.
+     */
     @Override
-    public UUID getUUIDForName(String name) {
-        if ("Console".equals(name)) {
-            return BungeeMail.CONSOLE_UUID;
-        }
-        uuidLock.readLock().lock();
-        try {
-            UUID uuid = data.uuidMap.get(name);
-            if (uuid == null) {
-                // TODO better performance?
-                for (Map.Entry<String, UUID> entry : data.uuidMap.entrySet()) {
-                    if (entry.getKey().equalsIgnoreCase(name)) {
-                        uuid = entry.getValue();
+    public Map<UUID, Integer> countMessages(Collection<UUID> recipients, boolean onlyNew) throws StorageException {
+        Map<UUID, Integer> counts = new HashMap<>();
+        for (UUID recipient : recipients) {
+            Inbox inbox = inboxes.get(recipient);
+            if (inbox != null) {
+                inbox.lock.readLock().lock();
+                try {
+                    if (!inbox.evicted) {
+                        counts.put(recipient, onlyNew ? inbox.unread : inbox.mails.size());
+                        continue;
                     }
+                } finally {
+                    inbox.lock.readLock().unlock();
                 }
             }
-            return uuid;
-        } finally {
-            uuidLock.readLock().unlock();
+            int count = 0;
+            try {
+                for (FlatFileMessage mail : readMails(recipient)) {
+                    if (!onlyNew || !mail.isRead()) {
+                        count++;
+                    }
+                }
+            } catch (IOException ex) {
+                throw new StorageException("Failed to load mails of " + recipient, ex);
+            }
+            counts.put(recipient, count);
         }
+        return counts;
     }
 
     @Override
-    public Collection<UUID> getAllKnownUUIDs() {
-        uuidLock.readLock().lock();
+    public int deleteOldestRead(UUID recipient, int count) throws StorageException {
+        Inbox inbox = lockInbox(recipient, true);
         try {
-            return ImmutableSet.copyOf(data.uuidMap.values());
+            // mails are stored in the order they have been sent
+            int[] deleted = {0};
+            if (inbox.removeIf(removing(mail -> mail.isRead() && deleted[0]++ < count))) {
+                inbox.dirty.set(true);
+                retentionIndex.update(recipient, inbox.mails);
+            }
+            return Math.min(deleted[0], count);
         } finally {
-            uuidLock.readLock().unlock();
+            inbox.lock.writeLock().unlock();
         }
     }
 
+    /**
+     * Only the inboxes in the expired segments of the retention index are checked. Inboxes that are not loaded are
+     * filtered directly on disk, they are not added to the cache. Their files are rewritten completely, even if only a
+     * single mail has expired.
+     */
     @Override
-    public Collection<String> getKnownUsernames() {
-        uuidLock.readLock().lock();
+    public void deleteOlder(long time, boolean deleteUnread) throws StorageException {
+        pendingIndexUpdates.incrementAndGet();
+        try {
+            for (UUID recipient : retentionIndex.getExpired(time, deleteUnread)) {
+                deleteOlder(recipient, time, deleteUnread);
+            }
+        } finally {
+            pendingIndexUpdates.decrementAndGet();
+        }
+    }
+
+    private void deleteOlder(UUID recipient, long time, boolean deleteUnread) throws StorageException {
+        removeMails(recipient, message -> message.getTime() < time && (deleteUnread || message.isRead()));
+    }
+
+    /**
+     * Removes the mails matching the filter from an inbox. Inboxes that are not loaded are filtered directly on disk,
+     * the caller must count as a pending index update.
+     */
+    private void removeMails(UUID recipient, Predicate<FlatFileMessage> filter) throws StorageException {
+        Lock loadLock = loadLocks.get(recipient);
+        loadLock.lock();
         try {
-            return ImmutableSet.copyOf(data.uuidMap.keySet());
+            Inbox inbox = inboxes.get(recipient);
+            if (inbox == null) {
+                List<FlatFileMessage> mails = readUnloadedInbox(recipient);
+                if (mails.removeIf(removing(filter))) {
+                    writeUnloadedInbox(recipient, mails);
+                    retentionIndex.update(recipient, mails);
+                }
+                return;
+            }
+            // loaded inboxes can't be evicted while we hold the load lock
+            inbox.lock.writeLock().lock();
+            try {
+                if (inbox.removeIf(removing(filter))) {
+                    inbox.dirty.set(true);
+                    retentionIndex.update(recipient, inbox.mails);
+                }
+            } finally {
+                inbox.lock.writeLock().unlock();
+            }
+        } catch (IOException ex) {
+            throw new StorageException("Failed to delete mails of " + recipient, ex);
         } finally {
-            uuidLock.readLock().unlock();
+            loadLock.unlock();
         }
     }
 
+    /**
+     * Inboxes that are not loaded are read from disk, they are not added to the cache.
+     */
     @Override
-    public void updateUserEntry(UUID uuid, String username) {
-        uuidLock.writeLock().lock();
+    public List<Message> getOlderRead(long time, int limit) throws StorageException {
+        List<Message> messages = new ArrayList<>();
+        for (UUID recipient : retentionIndex.getExpired(time, false)) {
+            List<FlatFileMessage> mails;
+            try {
+                mails = readMails(recipient);
+            } catch (IOException ex) {
+                throw new StorageException("Failed to load mails of " + recipient, ex);
+            }
+            for (FlatFileMessage mail : mails) {
+                if (mail.isRead() && mail.getTime() < time) {
+                    messages.add(mail);
+                }
+            }
+            if (messages.size() >= limit) {
+                break;
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Inboxes that are not loaded are filtered directly on disk, they are not added to the cache.
+     */
+    @Override
+    public void deleteMessages(List<? extends Message> messages) throws StorageException {
+        // matched by content rather than identity, the mails may have been read from disk or the inbox may have been
+        // evicted and reloaded in the meantime
+        Map<UUID, List<Message>> byRecipient = new HashMap<>();
+        for (Message message : messages) {
+            Preconditions.checkArgument(message instanceof FlatFileMessage);
+            byRecipient.computeIfAbsent(message.getRecipient(), uuid -> new ArrayList<>()).add(message);
+        }
+        pendingIndexUpdates.incrementAndGet();
         try {
-            data.uuidMap.put(username, uuid);
-            requestSave();
+            for (Map.Entry<UUID, List<Message>> entry : byRecipient.entrySet()) {
+                removeMails(entry.getKey(), mail -> entry.getValue().stream().anyMatch(message -> isSameMail(mail, message)));
+            }
         } finally {
-            uuidLock.writeLock().unlock();
+            pendingIndexUpdates.decrementAndGet();
+        }
+    }
+
+    private static boolean isSameMail(Message a, Message b) {
+        return a == b || (a.getTime() == b.getTime() && Objects.equals(a.getSenderUUID(), b.getSenderUUID()) && Objects.equals(a.getMessage(), b.getMessage()));
+    }
+
+    /**
+     * Wraps a filter used to remove mails, so the removed mails are also removed from the index of sent mails.
+     */
+    private Predicate<FlatFileMessage> removing(Predicate<FlatFileMessage> filter) {
+        return mail -> {
+            if (!filter.test(mail)) {
+                return false;
+            }
+            if (mail.getSenderUUID() != null) {
+                sentIndex.remove(mail.getSenderUUID(), mail.getRecipient(), mail.getTime());
+            }
+            return true;
+        };
+    }
+
+    /**
+     * The offset is applied to the index of sent mails, only the inboxes of the mails on the requested page are read.
+     */
+    @Override
+    public List<Message> getSentMessages(UUID sender, int offset, int limit) throws StorageException {
+        List<Message> messages = new ArrayList<>();
+        Map<UUID, List<FlatFileMessage>> inboxes = new HashMap<>();
+        // several mails may have been sent to the same recipient in the same millisecond, each entry gets its own mail
+        Set<FlatFileMessage> matched = new HashSet<>();
+        List<FlatFileSentIndex.Entry> entries = sentIndex.get(sender);
+        int first = Math.min(offset, entries.size());
+        // skipped entries sent in the same millisecond as the first one on the page are matched as well
+        int start = first;
+        while (start > 0 && first < entries.size() && entries.get(start - 1).time == entries.get(first).time) {
+            start--;
+        }
+        for (int i = start; i < entries.size(); i++) {
+            FlatFileSentIndex.Entry entry = entries.get(i);
+            List<FlatFileMessage> mails = inboxes.get(entry.recipient);
+            if (mails == null) {
+                try {
+                    mails = readMails(entry.recipient);
+                } catch (IOException ex) {
+                    throw new StorageException("Failed to load mails of " + entry.recipient, ex);
+                }
+                inboxes.put(entry.recipient, mails);
+            }
+            FlatFileMessage mail = null;
+            for (FlatFileMessage candidate : mails) {
+                if (candidate.getTime() == entry.time && entry.recipient.equals(candidate.getRecipient())
+                        && sender.equals(candidate.getSenderUUID()) && matched.add(candidate)) {
+                    mail = candidate;
+                    break;
+                }
+            }
+            if (mail == null) {
+                // removed without updating the index, e.g. by an older version, the next entry takes its place
+                sentIndex.remove(sender, entry.recipient, entry.time);
+                continue;
+            }
+            if (i < first) {
+                continue;
+            }
+            messages.add(mail);
+            if (messages.size() >= limit) {
+                break;
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public int countSentMessages(UUID sender) {
+        return sentIndex.count(sender);
+    }
+
+    @Override
+    public String getNameForUUID(UUID uuid) {
+        if (BungeeMail.CONSOLE_UUID.equals(uuid)) {
+            return "Console";
+        }
+        return nameMap.get(uuid);
+    }
+
+    @Override
+    public UUID getUUIDForName(String name) {
+        if ("Console".equals(name)) {
+            return BungeeMail.CONSOLE_UUID;
+        }
+        UUID uuid = uuidMap.get(name);
+        if (uuid == null) {
+            // TODO better performance?
+            for (Map.Entry<String, UUID> entry : uuidMap.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(name)) {
+                    uuid = entry.getValue();
+                }
+            }
+        }
+        return uuid;
+    }
+
+    @Override
+    public Map<String, UUID> getUUIDsForNames(Collection<String> names) {
+        Map<String, UUID> result = new HashMap<>();
+        Map<String, String> missing = new HashMap<>();
+        for (String name : names) {
+            UUID uuid = "Console".equals(name) ? BungeeMail.CONSOLE_UUID : uuidMap.get(name);
+            if (uuid != null) {
+                result.put(name, uuid);
+            } else {
+                missing.put(name.toLowerCase(), name);
+            }
+        }
+        if (!missing.isEmpty()) {
+            // a single pass over all names for those that differ in case
+            for (Map.Entry<String, UUID> entry : uuidMap.entrySet()) {
+                String name = missing.get(entry.getKey().toLowerCase());
+                if (name != null) {
+                    result.put(name, entry.getValue());
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Collection<UUID> getAllKnownUUIDs() {
+        return ImmutableSet.copyOf(uuidMap.values());
+    }
+
+    @Override
+    public Collection<String> getKnownUsernames() {
+        return ImmutableSet.copyOf(uuidMap.keySet());
+    }
+
+    @Override
+    public void updateUserEntry(UUID uuid, String username) {
+        if (putUserEntry(username, uuid)) {
+            usersDirty.set(true);
+        }
+    }
+
+    /**
+     * Updates the uuid map and its reverse.
+     *
+     * @return true if the uuid map has been modified
+     */
+    private boolean putUserEntry(String username, UUID uuid) {
+        UUID previous = uuidMap.put(username, uuid);
+        nameMap.put(uuid, username);
+        if (uuid.equals(previous)) {
+            return false;
+        }
+        if (previous != null) {
+            // the name now belongs to another player
+            nameMap.remove(previous, username);
+        }
+        return true;
+    }
+
+    /**
+     * Mails that have not been written to disk yet are not included, call {@link #saveData()} first.
+     * The checkpoint consists of the recipient and the number of their mails that have already been exported.
+     */
+    @Override
+    public ExportBatch<Message> exportMessages(String checkpoint, int limit) throws StorageException {
+        String lastRecipient = "";
+        int exported = 0;
+        if (checkpoint != null) {
+            int index = checkpoint.indexOf(':');
+            lastRecipient = checkpoint.substring(0, index);
+            exported = Integer.parseInt(checkpoint.substring(index + 1));
+        }
+        List<Message> messages = new ArrayList<>();
+        for (File bucket : listBuckets()) {
+            if (bucket.getName().compareTo(lastRecipient.substring(0, Math.min(2, lastRecipient.length()))) < 0) {
+                continue;
+            }
+            for (UUID recipient : listRecipients(bucket)) {
+                int cmp = recipient.toString().compareTo(lastRecipient);
+                if (cmp < 0) {
+                    continue;
+                }
+                List<FlatFileMessage> mails;
+                try {
+                    mails = readMails(recipient);
+                } catch (IOException ex) {
+                    throw new StorageException("Failed to load mails of " + recipient, ex);
+                }
+                int start = cmp == 0 ? exported : 0;
+                for (int i = start; i < mails.size(); i++) {
+                    messages.add(mails.get(i));
+                    if (messages.size() >= limit) {
+                        return new ExportBatch<>(messages, recipient + ":" + (i + 1));
+                    }
+                }
+                lastRecipient = recipient.toString();
+                exported = mails.size();
+            }
+        }
+        return new ExportBatch<>(messages, lastRecipient + ":" + exported);
+    }
+
+    @Override
+    public int saveMessages(List<? extends Message> messages) throws StorageException {
+        Map<UUID, List<Message>> byRecipient = new LinkedHashMap<>();
+        for (Message message : messages) {
+            byRecipient.computeIfAbsent(message.getRecipient(), uuid -> new ArrayList<>()).add(message);
         }
+        for (Map.Entry<UUID, List<Message>> entry : byRecipient.entrySet()) {
+            List<FlatFileMessage> mails = new ArrayList<>(entry.getValue().size());
+            for (Message message : entry.getValue()) {
+                mails.add(new FlatFileMessage(message.getTime(), message.isRead(), message.getMessage(), message.getRecipient(), message.getSenderUUID(), message.getSenderName()));
+            }
+            addMails(entry.getKey(), mails);
+            for (Message message : entry.getValue()) {
+                sentIndex.append(message.getSenderUUID(), message.getRecipient(), message.getTime());
+            }
+        }
+        sentIndex.sort();
+        return messages.size();
+    }
+
+    @Override
+    public ExportBatch<Map.Entry<String, UUID>> exportUserEntries(String checkpoint, int limit) {
+        String lastName = checkpoint == null ? "" : checkpoint;
+        // the uuid map is in memory anyway, select the next entries without sorting all of them
+        TreeMap<String, UUID> batch = new TreeMap<>();
+        for (Map.Entry<String, UUID> entry : uuidMap.entrySet()) {
+            if (entry.getKey().compareTo(lastName) > 0) {
+                batch.put(entry.getKey(), entry.getValue());
+                if (batch.size() > limit) {
+                    batch.pollLastEntry();
+                }
+            }
+        }
+        List<Map.Entry<String, UUID>> entries = new ArrayList<>();
+        for (Map.Entry<String, UUID> entry : batch.entrySet()) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+        }
+        return new ExportBatch<>(entries, batch.isEmpty() ? lastName : batch.lastKey());
+    }
+
+    @Override
+    public void updateUserEntries(Map<String, UUID> entries) {
+        for (Map.Entry<String, UUID> entry : entries.entrySet()) {
+            putUserEntry(entry.getKey(), entry.getValue());
+        }
+        usersDirty.set(true);
+    }
+
+    @Override
+    public void close() {
+        saveData();
+    }
+
+    private interface JsonWriterAction {
+        void write(JsonWriter out) throws IOException;
+    }
+
+    private static void readUUIDMap(JsonReader in, Map<String, UUID> uuidMap, Map<String, UUID> uuidCache) throws IOException {
+        in.beginObject();
+        while (in.hasNext()) {
+            String username = in.nextName();
+            UUID uuid = readUUID(in, uuidCache);
+            if (uuid != null) {
+                uuidMap.put(username, uuid);
+            }
+        }
+        in.endObject();
+    }
+
+    private static void writeUUIDMap(JsonWriter out, Map<String, UUID> uuidMap) throws IOException {
+        out.beginObject();
+        for (Map.Entry<String, UUID> entry : uuidMap.entrySet()) {
+            out.name(entry.getKey()).value(entry.getValue().toString());
+        }
+        out.endObject();
     }
 
     private static class FlatFileMessage implements Message {
@@ -259,7 +1232,7 @@ public class FlatFileBackend implements IStorageBackend {
         private UUID senderUUID;
         private UUID recipient;
         private String message;
-        private boolean read;
+        private volatile boolean read;
         private long time;
         private transient final long id;
 
@@ -329,8 +1302,231 @@ public class FlatFileBackend implements IStorageBackend {
         }
     }
 
+    /**
+     * The mails of a single recipient. Each inbox has its own lock, so operations on different inboxes don't block
+     * each other.
+     */
+    private static class Inbox {
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final List<FlatFileMessage> mails = new ArrayList<>();
+        // number of unread mails, guarded by the lock
+        private int unread = 0;
+        private final AtomicBoolean dirty = new AtomicBoolean(false);
+        private volatile long lastAccess;
+        // set while holding the write lock once the inbox has been removed from the cache
+        private boolean evicted = false;
+
+        // maps words to the mails containing them, built on the first search, guarded by the lock
+        private Map<String, Set<FlatFileMessage>> searchIndex = null;
+
+        private void add(FlatFileMessage mail) {
+            mails.add(mail);
+            if (!mail.isRead()) {
+                unread++;
+            }
+            if (searchIndex != null) {
+                index(mail);
+            }
+        }
+
+        private boolean removeIf(Predicate<FlatFileMessage> filter) {
+            boolean removed = false;
+            Iterator<FlatFileMessage> iterator = mails.iterator();
+            while (iterator.hasNext()) {
+                FlatFileMessage mail = iterator.next();
+                if (filter.test(mail)) {
+                    iterator.remove();
+                    removed = true;
+                    if (!mail.isRead()) {
+                        unread--;
+                    }
+                    if (searchIndex != null) {
+                        for (String token : SearchTokenizer.tokenize(mail.getMessage())) {
+                            Set<FlatFileMessage> postings = searchIndex.get(token);
+                            if (postings != null && postings.remove(mail) && postings.isEmpty()) {
+                                searchIndex.remove(token);
+                            }
+                        }
+                    }
+                }
+            }
+            return removed;
+        }
+
+        private void index(FlatFileMessage mail) {
+            for (String token : SearchTokenizer.tokenize(mail.getMessage())) {
+                searchIndex.computeIfAbsent(token, t -> new HashSet<>()).add(mail);
+            }
+        }
+
+        /**
+         * Get all mails containing all of the given words. Requires the write lock, as the index may be built.
+         */
+        private List<FlatFileMessage> search(Set<String> tokens) {
+            if (searchIndex == null) {
+                searchIndex = new HashMap<>();
+                for (FlatFileMessage mail : mails) {
+                    index(mail);
+                }
+            }
+            // start with the rarest word
+            Set<FlatFileMessage> smallest = null;
+            for (String token : tokens) {
+                Set<FlatFileMessage> postings = searchIndex.getOrDefault(token, Collections.emptySet());
+                if (smallest == null || postings.size() < smallest.size()) {
+                    smallest = postings;
+                }
+            }
+            List<FlatFileMessage> result = new ArrayList<>();
+            if (smallest == null) {
+                return result;
+            }
+            outer:
+            for (FlatFileMessage mail : smallest) {
+                for (String token : tokens) {
+                    if (!searchIndex.get(token).contains(mail)) {
+                        continue outer;
+                    }
+                }
+                result.add(mail);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Contents of the data.json file used by older versions.
+     */
     private static class Data {
-        private final List<FlatFileMessage> data = new ArrayList<>();
+        private final Map<UUID, List<FlatFileMessage>> mails = new HashMap<>();
         private final Map<String, UUID> uuidMap = new HashMap<>();
     }
+
+    /**
+     * Reads a UUID. If a cache is given equal UUIDs share a single instance, which saves a lot of
+     * allocations as the same recipient/ sender appears in many mails.
+     */
+    private static UUID readUUID(JsonReader in, Map<String, UUID> cache) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        String s = in.nextString();
+        if (cache == null) {
+            return UUID.fromString(s);
+        }
+        UUID uuid = cache.get(s);
+        if (uuid == null) {
+            uuid = UUID.fromString(s);
+            cache.put(s, uuid);
+        }
+        return uuid;
+    }
+
+    /**
+     * Writes a mail using the same field names as the reflective adapter used by older versions.
+     */
+    private static void writeMessage(JsonWriter out, FlatFileMessage mail) throws IOException {
+        out.beginObject();
+        if (mail.senderName != null) {
+            out.name("senderName").value(mail.senderName);
+        }
+        if (mail.senderUUID != null) {
+            out.name("senderUUID").value(mail.senderUUID.toString());
+        }
+        if (mail.recipient != null) {
+            out.name("recipient").value(mail.recipient.toString());
+        }
+        if (mail.message != null) {
+            out.name("message").value(mail.message);
+        }
+        out.name("read").value(mail.read);
+        out.name("time").value(mail.time);
+        out.endObject();
+    }
+
+    private static FlatFileMessage readMessage(JsonReader in, Map<String, UUID> uuidCache) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        String senderName = null;
+        UUID senderUUID = null;
+        UUID recipient = null;
+        String message = null;
+        boolean read = false;
+        long time = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "senderName":
+                    senderName = in.nextString();
+                    break;
+                case "senderUUID":
+                    senderUUID = readUUID(in, uuidCache);
+                    break;
+                case "recipient":
+                    recipient = readUUID(in, uuidCache);
+                    break;
+                case "message":
+                    message = in.nextString();
+                    break;
+                case "read":
+                    read = in.nextBoolean();
+                    break;
+                case "time":
+                    time = in.nextLong();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return new FlatFileMessage(time, read, message, recipient, senderUUID, senderName);
+    }
+
+    /**
+     * Reads the layout of data.json: a "data" array of mails and an "uuidMap" object mapping usernames to uuids.
+     * Mails are grouped by recipient while reading.
+     */
+    private static Data readLegacyData(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Data data = new Data();
+        Map<String, UUID> uuidCache = new HashMap<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "data":
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        FlatFileMessage mail = readMessage(in, uuidCache);
+                        if (mail != null && mail.recipient != null) {
+                            data.mails.computeIfAbsent(mail.recipient, uuid -> new ArrayList<>()).add(mail);
+                        }
+                    }
+                    in.endArray();
+                    break;
+                case "uuidMap":
+                    readUUIDMap(in, data.uuidMap, uuidCache);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return data;
+    }
 }
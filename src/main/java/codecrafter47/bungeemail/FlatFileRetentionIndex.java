@@ -0,0 +1,138 @@
+package codecrafter47.bungeemail;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Groups the inboxes of the flat-file backend into one segment per day, by the time of their oldest mail and
+ * separately by the time of their oldest read mail. Cleanup only needs to look at the inboxes in the segments up to
+ * and including the day of the threshold, so it skips the inboxes without expired mail instead of reading all of them.
+ * Each inbox with expired mail is still read and rewritten completely, so the cost depends on the size of those
+ * inboxes, not on the amount of expired mail.
+ */
+class FlatFileRetentionIndex {
+    private static final long SEGMENT_LENGTH = TimeUnit.DAYS.toMillis(1);
+    private static final long NONE = Long.MAX_VALUE;
+
+    // recipient -> time of the oldest read mail, time of the oldest mail
+    private final Map<UUID, long[]> oldest = new HashMap<>();
+    // day -> recipients whose oldest read mail is from that day
+    private final TreeMap<Long, Set<UUID>> readSegments = new TreeMap<>();
+    // day -> recipients whose oldest mail is from that day
+    private final TreeMap<Long, Set<UUID>> allSegments = new TreeMap<>();
+    final AtomicBoolean dirty = new AtomicBoolean(false);
+
+    synchronized void added(UUID recipient, long time, boolean read) {
+        long[] current = oldest.get(recipient);
+        long oldestRead = current != null ? current[0] : NONE;
+        long oldestAny = current != null ? current[1] : NONE;
+        set(recipient, read ? Math.min(oldestRead, time) : oldestRead, Math.min(oldestAny, time));
+    }
+
+    synchronized void markedRead(UUID recipient, long time) {
+        long[] current = oldest.get(recipient);
+        if (current != null && time < current[0]) {
+            set(recipient, time, current[1]);
+        }
+    }
+
+    /**
+     * Recomputes the segments of an inbox after mails have been removed.
+     */
+    synchronized void update(UUID recipient, Collection<? extends Message> mails) {
+        long oldestRead = NONE;
+        long oldestAny = NONE;
+        for (Message mail : mails) {
+            oldestAny = Math.min(oldestAny, mail.getTime());
+            if (mail.isRead()) {
+                oldestRead = Math.min(oldestRead, mail.getTime());
+            }
+        }
+        set(recipient, oldestRead, oldestAny);
+    }
+
+    /**
+     * @param includeUnread whether unread mails are deleted as well
+     * @return all recipients that may have mails older than the given time
+     */
+    synchronized Set<UUID> getExpired(long time, boolean includeUnread) {
+        Set<UUID> recipients = new HashSet<>();
+        for (Set<UUID> segment : (includeUnread ? allSegments : readSegments).headMap(segment(time), true).values()) {
+            recipients.addAll(segment);
+        }
+        return recipients;
+    }
+
+    private void set(UUID recipient, long oldestRead, long oldestAny) {
+        long[] previous = oldestRead == NONE && oldestAny == NONE ? oldest.remove(recipient) : oldest.put(recipient, new long[]{oldestRead, oldestAny});
+        if (previous != null) {
+            if (previous[0] == oldestRead && previous[1] == oldestAny) {
+                return;
+            }
+            removeFromSegment(readSegments, previous[0], recipient);
+            removeFromSegment(allSegments, previous[1], recipient);
+        }
+        addToSegment(readSegments, oldestRead, recipient);
+        addToSegment(allSegments, oldestAny, recipient);
+        dirty.set(true);
+    }
+
+    private static long segment(long time) {
+        return Math.floorDiv(time, SEGMENT_LENGTH);
+    }
+
+    private static void addToSegment(TreeMap<Long, Set<UUID>> segments, long time, UUID recipient) {
+        if (time != NONE) {
+            segments.computeIfAbsent(segment(time), day -> new HashSet<>()).add(recipient);
+        }
+    }
+
+    private static void removeFromSegment(TreeMap<Long, Set<UUID>> segments, long time, UUID recipient) {
+        if (time == NONE) {
+            return;
+        }
+        Long day = segment(time);
+        Set<UUID> segment = segments.get(day);
+        if (segment != null && segment.remove(recipient) && segment.isEmpty()) {
+            segments.remove(day);
+        }
+    }
+
+    synchronized void read(JsonReader in) throws IOException {
+        in.beginObject();
+        while (in.hasNext()) {
+            UUID recipient = UUID.fromString(in.nextName());
+            in.beginArray();
+            long oldestRead = in.nextLong();
+            long oldestAny = in.nextLong();
+            in.endArray();
+            set(recipient, oldestRead, oldestAny);
+        }
+        in.endObject();
+        dirty.set(false);
+    }
+
+    /**
+     * Writes a snapshot of the index. The caller is responsible for resetting the dirty flag before.
+     */
+    void write(JsonWriter out) throws IOException {
+        Map<UUID, long[]> snapshot;
+        synchronized (this) {
+            snapshot = new HashMap<>(oldest);
+        }
+        out.beginObject();
+        for (Map.Entry<UUID, long[]> entry : snapshot.entrySet()) {
+            out.name(entry.getKey().toString());
+            out.beginArray();
+            out.value(entry.getValue()[0]);
+            out.value(entry.getValue()[1]);
+            out.endArray();
+        }
+        out.endObject();
+    }
+}
@@ -0,0 +1,145 @@
+package codecrafter47.bungeemail;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Maps senders to the mails they have sent for the flat-file backend. Mails are stored in the inbox of their
+ * recipient, so the index only keeps recipient and time of each mail, which is enough to find it in that inbox.
+ * Entries of each sender are kept in the order the mails have been sent.
+ */
+class FlatFileSentIndex {
+    private final Map<UUID, List<Entry>> entries = new HashMap<>();
+    // senders with entries added by append since the last sort
+    private final Set<UUID> unsorted = new HashSet<>();
+    final AtomicBoolean dirty = new AtomicBoolean(false);
+
+    synchronized void add(UUID sender, UUID recipient, long time) {
+        List<Entry> list = entries.computeIfAbsent(sender, s -> new ArrayList<>());
+        Entry entry = new Entry(recipient, time);
+        // usually appended at the end, mails are sent in order
+        int index = list.size();
+        while (index > 0 && list.get(index - 1).time > time) {
+            index--;
+        }
+        list.add(index, entry);
+        dirty.set(true);
+    }
+
+    /**
+     * Adds an entry without keeping the order, {@link #sort()} must be called afterwards.
+     */
+    synchronized void append(UUID sender, UUID recipient, long time) {
+        entries.computeIfAbsent(sender, s -> new ArrayList<>()).add(new Entry(recipient, time));
+        unsorted.add(sender);
+        dirty.set(true);
+    }
+
+    /**
+     * Sorts the entries of the senders that have been appended to.
+     */
+    synchronized void sort() {
+        for (UUID sender : unsorted) {
+            List<Entry> list = entries.get(sender);
+            if (list != null) {
+                list.sort(Comparator.comparingLong(entry -> entry.time));
+            }
+        }
+        unsorted.clear();
+    }
+
+    synchronized void remove(UUID sender, UUID recipient, long time) {
+        List<Entry> list = entries.get(sender);
+        if (list == null) {
+            return;
+        }
+        for (int i = list.size() - 1; i >= 0; i--) {
+            Entry entry = list.get(i);
+            if (entry.time == time && entry.recipient.equals(recipient)) {
+                list.remove(i);
+                if (list.isEmpty()) {
+                    entries.remove(sender);
+                }
+                dirty.set(true);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the mails sent by the sender, newest first
+     */
+    synchronized List<Entry> get(UUID sender) {
+        List<Entry> list = entries.get(sender);
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        List<Entry> copy = new ArrayList<>(list);
+        Collections.reverse(copy);
+        return copy;
+    }
+
+    synchronized int count(UUID sender) {
+        List<Entry> list = entries.get(sender);
+        return list == null ? 0 : list.size();
+    }
+
+    synchronized void read(JsonReader in) throws IOException {
+        Map<String, UUID> uuidCache = new HashMap<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            UUID sender = UUID.fromString(in.nextName());
+            List<Entry> list = new ArrayList<>();
+            in.beginArray();
+            while (in.hasNext()) {
+                in.beginArray();
+                UUID recipient = uuidCache.computeIfAbsent(in.nextString(), UUID::fromString);
+                long time = in.nextLong();
+                in.endArray();
+                list.add(new Entry(recipient, time));
+            }
+            in.endArray();
+            entries.put(sender, list);
+        }
+        in.endObject();
+    }
+
+    /**
+     * Writes a snapshot of the index. The caller is responsible for resetting the dirty flag before.
+     */
+    void write(JsonWriter out) throws IOException {
+        Map<UUID, List<Entry>> snapshot = new HashMap<>();
+        synchronized (this) {
+            for (Map.Entry<UUID, List<Entry>> entry : entries.entrySet()) {
+                snapshot.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+        }
+        out.beginObject();
+        for (Map.Entry<UUID, List<Entry>> entry : snapshot.entrySet()) {
+            out.name(entry.getKey().toString());
+            out.beginArray();
+            for (Entry sent : entry.getValue()) {
+                out.beginArray();
+                out.value(sent.recipient.toString());
+                out.value(sent.time);
+                out.endArray();
+            }
+            out.endArray();
+        }
+        out.endObject();
+    }
+
+    static class Entry {
+        final UUID recipient;
+        final long time;
+
+        private Entry(UUID recipient, long time) {
+            this.recipient = recipient;
+            this.time = time;
+        }
+    }
+}
@@ -2,21 +2,69 @@ package codecrafter47.bungeemail;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 public interface IStorageBackend {
     List<Message> getMessagesFor(UUID uuid, boolean onlyNew) throws StorageException;
 
+    /**
+     * Get all mails of a player that contain all of the given words, newest first.
+     *
+     * @param tokens lower case words as returned by {@link SearchTokenizer#tokenizeQuery(String)}
+     */
+    List<Message> searchMessages(UUID recipient, Set<String> tokens) throws StorageException;
+
+    /**
+     * Called when a player joins, so the backend can load the inbox of the player before it is needed.
+     */
+    void loadInbox(UUID uuid) throws StorageException;
+
+    /**
+     * Called when a player disconnects, the backend may release cached data of that player.
+     */
+    void unloadInbox(UUID uuid);
+
     Message saveMessage(String senderName, UUID senderUUID, UUID recipient, String message, boolean read, long time) throws StorageException;
 
     int saveMessageToAll(String senderName, UUID senderUUID, String message, boolean read, long time) throws StorageException;
 
+    /**
+     * Saves the same mail for multiple recipients at once.
+     *
+     * @return number of saved mails
+     */
+    int saveMessages(String senderName, UUID senderUUID, Collection<UUID> recipients, String message, boolean read, long time) throws StorageException;
+
     void markRead(Message message) throws StorageException;
 
     void delete(Message message) throws StorageException;
 
     UUID getUUIDForName(String name) throws StorageException;
 
+    /**
+     * Looks up the uuids of multiple names at once. Names are case insensitive like in {@link #getUUIDForName(String)}.
+     *
+     * @return the uuid of each known name, keyed by the name as passed in
+     */
+    Map<String, UUID> getUUIDsForNames(Collection<String> names) throws StorageException;
+
+    /**
+     * @return a name the player has used or null if unknown
+     */
+    String getNameForUUID(UUID uuid) throws StorageException;
+
+    /**
+     * Get the mails sent by a player, newest first.
+     *
+     * @param offset number of mails to skip
+     * @param limit  maximum number of mails to return
+     */
+    List<Message> getSentMessages(UUID sender, int offset, int limit) throws StorageException;
+
+    int countSentMessages(UUID sender) throws StorageException;
+
     Collection<UUID> getAllKnownUUIDs() throws StorageException;
 
     // used for tab-complete
@@ -27,4 +75,70 @@ public interface IStorageBackend {
     boolean delete(long id, UUID recipient) throws StorageException;
 
     void deleteOlder(long time, boolean deleteUnread) throws StorageException;
+
+    /**
+     * Get read mails older than the given time, used to move them to the archive.
+     *
+     * @param limit maximum number of mails to return
+     */
+    List<Message> getOlderRead(long time, int limit) throws StorageException;
+
+    /**
+     * Deletes multiple mails at once.
+     */
+    void deleteMessages(List<? extends Message> messages) throws StorageException;
+
+    /**
+     * Get the number of mails of a player. Backends keep counters for this instead of querying the inbox.
+     *
+     * @param onlyNew whether to count only unread mails
+     */
+    int countMessages(UUID recipient, boolean onlyNew) throws StorageException;
+
+    /**
+     * Get the number of mails of multiple players at once.
+     *
+     * @param onlyNew whether to count only unread mails
+     * @return number of mails for each of the recipients
+     */
+    Map<UUID, Integer> countMessages(Collection<UUID> recipients, boolean onlyNew) throws StorageException;
+
+    /**
+     * Deletes the oldest read mails of a player.
+     *
+     * @return number of deleted mails
+     */
+    int deleteOldestRead(UUID recipient, int count) throws StorageException;
+
+    // used to migrate data between backends
+
+    /**
+     * Reads the next batch of mails. Mails are returned in a stable order.
+     *
+     * @param checkpoint checkpoint of the previous batch, or null to start at the beginning
+     * @param limit      maximum number of mails to return
+     */
+    ExportBatch<Message> exportMessages(String checkpoint, int limit) throws StorageException;
+
+    /**
+     * Saves multiple mails at once, keeping their sender, recipient, read state and time.
+     *
+     * @return number of saved mails
+     */
+    int saveMessages(List<? extends Message> messages) throws StorageException;
+
+    /**
+     * Reads the next batch of username to uuid mappings, ordered by username.
+     *
+     * @param checkpoint checkpoint of the previous batch, or null to start at the beginning
+     * @param limit      maximum number of entries to return
+     */
+    ExportBatch<Map.Entry<String, UUID>> exportUserEntries(String checkpoint, int limit) throws StorageException;
+
+    void updateUserEntries(Map<String, UUID> entries) throws StorageException;
+
+    /**
+     * Saves pending changes and releases all resources held by this backend.
+     */
+    void close();
 }
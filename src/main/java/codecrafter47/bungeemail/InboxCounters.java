@@ -0,0 +1,129 @@
+package codecrafter47.bungeemail;
+
+import com.google.common.collect.Lists;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caches the number of total and unread mails per recipient for the SQL backends. Counters are loaded with a
+ * single count query and then updated by the backend on every write. As other proxies may write to the same
+ * database counters expire after a few minutes.
+ */
+class InboxCounters {
+    private static final long EXPIRE_AFTER = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_BATCH_SIZE = 500;
+
+    private final ConcurrentMap<UUID, Counter> counters = new ConcurrentHashMap<>();
+
+    interface Loader {
+        /**
+         * @return number of total and unread mails of the recipient
+         */
+        int[] load(UUID recipient) throws StorageException;
+    }
+
+    interface BatchLoader {
+        /**
+         * @return number of total and unread mails of the recipients, recipients without mails may be missing
+         */
+        Map<UUID, int[]> load(List<UUID> recipients) throws StorageException;
+    }
+
+    int get(UUID recipient, boolean onlyNew, Loader loader) throws StorageException {
+        Counter counter = getIfValid(recipient);
+        if (counter == null) {
+            int[] counts = loader.load(recipient);
+            counter = new Counter(counts[0], counts[1]);
+            counters.put(recipient, counter);
+        }
+        return counter.get(onlyNew);
+    }
+
+    /**
+     * Get the counters of multiple recipients, loading all missing counters with as few queries as possible.
+     */
+    Map<UUID, Integer> getAll(Collection<UUID> recipients, boolean onlyNew, BatchLoader loader) throws StorageException {
+        Map<UUID, Integer> result = new HashMap<>();
+        List<UUID> missing = new ArrayList<>();
+        for (UUID recipient : recipients) {
+            Counter counter = getIfValid(recipient);
+            if (counter != null) {
+                result.put(recipient, counter.get(onlyNew));
+            } else {
+                missing.add(recipient);
+            }
+        }
+        for (List<UUID> batch : Lists.partition(missing, MAX_BATCH_SIZE)) {
+            Map<UUID, int[]> loaded = loader.load(batch);
+            for (UUID recipient : batch) {
+                int[] counts = loaded.getOrDefault(recipient, new int[2]);
+                Counter counter = new Counter(counts[0], counts[1]);
+                counters.put(recipient, counter);
+                result.put(recipient, counter.get(onlyNew));
+            }
+        }
+        return result;
+    }
+
+    private Counter getIfValid(UUID recipient) {
+        Counter counter = counters.get(recipient);
+        if (counter == null || System.currentTimeMillis() - counter.loaded > EXPIRE_AFTER) {
+            return null;
+        }
+        return counter;
+    }
+
+    void added(UUID recipient, boolean read) {
+        Counter counter = counters.get(recipient);
+        if (counter != null) {
+            counter.total.incrementAndGet();
+            if (!read) {
+                counter.unread.incrementAndGet();
+            }
+        }
+    }
+
+    void removed(UUID recipient, boolean read, int count) {
+        Counter counter = counters.get(recipient);
+        if (counter != null) {
+            counter.total.addAndGet(-count);
+            if (!read) {
+                counter.unread.addAndGet(-count);
+            }
+        }
+    }
+
+    void markedRead(UUID recipient) {
+        Counter counter = counters.get(recipient);
+        if (counter != null) {
+            counter.unread.decrementAndGet();
+        }
+    }
+
+    void invalidate(UUID recipient) {
+        counters.remove(recipient);
+    }
+
+    void invalidateAll() {
+        counters.clear();
+    }
+
+    private static class Counter {
+        private final AtomicInteger total;
+        private final AtomicInteger unread;
+        private final long loaded = System.currentTimeMillis();
+
+        private Counter(int total, int unread) {
+            this.total = new AtomicInteger(total);
+            this.unread = new AtomicInteger(unread);
+        }
+
+        private int get(boolean onlyNew) {
+            return onlyNew ? unread.get() : total.get();
+        }
+    }
+}
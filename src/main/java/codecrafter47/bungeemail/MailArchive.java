@@ -0,0 +1,291 @@
+package codecrafter47.bungeemail;
+
+import com.google.common.base.Charsets;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cold storage for old mails. Archived mails are written to append-only, gzip compressed files in the archive
+ * directory, one file per day. The mails of each recipient are written as a separate gzip member, so they can be
+ * read without decompressing the whole file. index.log records the position of each of these blocks, it is loaded
+ * into memory on startup.
+ * <p>
+ * Archived mails are read only.
+ */
+class MailArchive {
+    private final File directory;
+    private final File indexFile;
+    private final Logger logger;
+    private final Map<UUID, List<Block>> index = new HashMap<>();
+
+    MailArchive(File directory, Logger logger) {
+        this.directory = directory;
+        this.indexFile = new File(directory, "index.log");
+        this.logger = logger;
+    }
+
+    /**
+     * Reads the index. Blocks that have been recorded without being completely written are ignored.
+     */
+    synchronized void load() throws IOException {
+        index.clear();
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), Charsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length != 5) {
+                    // partially written line
+                    continue;
+                }
+                try {
+                    Block block = new Block(parts[1], Long.parseLong(parts[2]), Integer.parseInt(parts[3]), Integer.parseInt(parts[4]));
+                    File file = new File(directory, block.file);
+                    if (file.length() >= block.offset + block.length) {
+                        index.computeIfAbsent(UUID.fromString(parts[0]), uuid -> new ArrayList<>()).add(block);
+                    }
+                } catch (IllegalArgumentException ex) {
+                    logger.log(Level.WARNING, "Skipping malformed line in " + indexFile + ": " + line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends mails to the archive. Returns after the mails and the index have been synced to disk.
+     */
+    synchronized void append(List<? extends Message> mails) throws IOException {
+        if (mails.isEmpty()) {
+            return;
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        Map<UUID, List<Message>> byRecipient = new LinkedHashMap<>();
+        for (Message mail : mails) {
+            byRecipient.computeIfAbsent(mail.getRecipient(), uuid -> new ArrayList<>()).add(mail);
+        }
+        String fileName = new SimpleDateFormat("yyyy-MM-dd").format(new Date()) + ".gz";
+        File file = new File(directory, fileName);
+        Map<UUID, Block> written = new LinkedHashMap<>();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            long offset = out.getChannel().position();
+            for (Map.Entry<UUID, List<Message>> entry : byRecipient.entrySet()) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(new GZIPOutputStream(buffer), Charsets.UTF_8))) {
+                    writer.beginArray();
+                    for (Message mail : entry.getValue()) {
+                        writer.beginObject();
+                        writer.name("senderName").value(mail.getSenderName());
+                        writer.name("senderUUID").value(mail.getSenderUUID() != null ? mail.getSenderUUID().toString() : null);
+                        writer.name("message").value(mail.getMessage());
+                        writer.name("read").value(mail.isRead());
+                        writer.name("time").value(mail.getTime());
+                        writer.endObject();
+                    }
+                    writer.endArray();
+                }
+                buffer.writeTo(out);
+                written.put(entry.getKey(), new Block(fileName, offset, buffer.size(), entry.getValue().size()));
+                offset += buffer.size();
+            }
+            out.getFD().sync();
+        }
+        try (FileOutputStream out = new FileOutputStream(indexFile, true)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8));
+            for (Map.Entry<UUID, Block> entry : written.entrySet()) {
+                Block block = entry.getValue();
+                writer.write(entry.getKey() + " " + block.file + " " + block.offset + " " + block.length + " " + block.count + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        for (Map.Entry<UUID, Block> entry : written.entrySet()) {
+            index.computeIfAbsent(entry.getKey(), uuid -> new ArrayList<>()).add(entry.getValue());
+        }
+    }
+
+    /**
+     * @return the number of archived mails of a player, without reading the archive files
+     */
+    synchronized int count(UUID recipient) {
+        int count = 0;
+        for (Block block : index.getOrDefault(recipient, Collections.emptyList())) {
+            count += block.count;
+        }
+        return count;
+    }
+
+    /**
+     * Reads a page of the archived mails of a player. Only the blocks containing the mails of the page are read,
+     * using the mail counts from the index.
+     * <p>
+     * Blocks are listed in the reverse order they have been archived in, the mails of each block newest first. As
+     * mails are archived once they are old enough this is the order they have been sent in, except for mails that
+     * have been read late and archived after newer mails.
+     *
+     * @param offset number of mails to skip
+     * @param limit  maximum number of mails to return
+     */
+    List<Message> get(UUID recipient, int offset, int limit) throws IOException {
+        List<Block> blocks;
+        synchronized (this) {
+            blocks = new ArrayList<>(index.getOrDefault(recipient, Collections.emptyList()));
+        }
+        Collections.reverse(blocks);
+        List<Message> mails = new ArrayList<>();
+        int skipped = 0;
+        for (Block block : blocks) {
+            if (mails.size() >= limit) {
+                break;
+            }
+            if (skipped + block.count <= offset) {
+                skipped += block.count;
+                continue;
+            }
+            List<Message> blockMails = readBlock(block, recipient);
+            blockMails.sort(Comparator.comparingLong(Message::getTime).reversed());
+            int from = Math.max(offset - skipped, 0);
+            skipped += block.count;
+            for (int i = from; i < blockMails.size() && mails.size() < limit; i++) {
+                mails.add(blockMails.get(i));
+            }
+        }
+        return mails;
+    }
+
+    private List<Message> readBlock(Block block, UUID recipient) throws IOException {
+        byte[] data = new byte[block.length];
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, block.file), "r")) {
+            file.seek(block.offset);
+            file.readFully(data);
+        }
+        List<Message> mails = new ArrayList<>(block.count);
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(data)), Charsets.UTF_8))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                mails.add(readMessage(reader, recipient));
+            }
+            reader.endArray();
+        }
+        return mails;
+    }
+
+    private static ArchivedMessage readMessage(JsonReader in, UUID recipient) throws IOException {
+        String senderName = null;
+        UUID senderUUID = null;
+        String message = null;
+        boolean read = true;
+        long time = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "senderName":
+                    senderName = in.nextString();
+                    break;
+                case "senderUUID":
+                    senderUUID = UUID.fromString(in.nextString());
+                    break;
+                case "message":
+                    message = in.nextString();
+                    break;
+                case "read":
+                    read = in.nextBoolean();
+                    break;
+                case "time":
+                    time = in.nextLong();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return new ArchivedMessage(senderName, senderUUID, recipient, message, read, time);
+    }
+
+    private static class Block {
+        private final String file;
+        private final long offset;
+        private final int length;
+        private final int count;
+
+        private Block(String file, long offset, int length, int count) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.count = count;
+        }
+    }
+
+    /**
+     * A mail read from the archive. Archived mails can't be modified, they have no id.
+     */
+    static class ArchivedMessage implements Message {
+        private final String senderName;
+        private final UUID senderUUID;
+        private final UUID recipient;
+        private final String message;
+        private final boolean read;
+        private final long time;
+
+        private ArchivedMessage(String senderName, UUID senderUUID, UUID recipient, String message, boolean read, long time) {
+            this.senderName = senderName;
+            this.senderUUID = senderUUID;
+            this.recipient = recipient;
+            this.message = message;
+            this.read = read;
+            this.time = time;
+        }
+
+        @Override
+        public String getSenderName() {
+            return senderName;
+        }
+
+        @Override
+        public UUID getSenderUUID() {
+            return senderUUID;
+        }
+
+        @Override
+        public UUID getRecipient() {
+            return recipient;
+        }
+
+        @Override
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public boolean isRead() {
+            return read;
+        }
+
+        @Override
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public long getId() {
+            return -1;
+        }
+    }
+}
@@ -2,18 +2,32 @@ package codecrafter47.bungeemail;
 
 import codecrafter47.util.chat.ChatUtil;
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
 import net.md_5.bungee.api.CommandSender;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.plugin.Command;
 
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class MailCommand extends Command {
 
+    private static final Set<String> SUBCOMMANDS = ImmutableSet.of("view", "list", "read", "listall", "sent", "search", "sendall", "reload", "migrate", "send", "help", "del");
+    private static final DateTimeFormatter TIME_OF_DAY = DateTimeFormatter.ofPattern("H:mm");
+    private static final Pattern DELAY = Pattern.compile("(?:(\\d+)d)?(?:(\\d+)h)?(?:(\\d+)m)?");
+    private static final TimeUnit[] DELAY_UNITS = {TimeUnit.DAYS, TimeUnit.HOURS, TimeUnit.MINUTES};
+
     private final BungeeMail plugin;
 
     public MailCommand(String name, String permission, BungeeMail plugin) {
@@ -23,10 +37,35 @@ public class MailCommand extends Command {
 
     @Override
     public void execute(CommandSender commandSender, String[] args) {
+        String subcommand = args.length < 1 ? "help" : SUBCOMMANDS.contains(args[0].toLowerCase()) ? args[0].toLowerCase() : "send";
+        MailEvents.Command event = null;
+        if (MailEvents.AVAILABLE) {
+            event = new MailEvents.Command();
+            event.begin();
+        }
+        try (SlowOperationLog.Trace ignored = plugin.slowOperationLog.start("/mail " + subcommand, commandSender.getName())) {
+            executeCommand(commandSender, args);
+        } finally {
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.subcommand = subcommand;
+                    event.player = commandSender.getName();
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    private void executeCommand(CommandSender commandSender, String[] args) {
         if (args.length < 1) {
             commandSender.sendMessage(ChatUtil.parseBBCode(plugin.messages.help));
             return;
         }
+        if (!plugin.isStorageReady() && !args[0].equalsIgnoreCase("help") && !args[0].equalsIgnoreCase("reload")) {
+            commandSender.sendMessage(ChatUtil.parseBBCode(plugin.messages.starting));
+            return;
+        }
         switch (args[0].toLowerCase()) {
             case "view":
             case "list":
@@ -40,6 +79,9 @@ public class MailCommand extends Command {
                         return;
                     }
                 }
+                if (!checkRateLimit(commandSender, RateLimiter.Operation.LIST)) {
+                    return;
+                }
                 try {
                     plugin.listMessages(commandSender, start, true, false);
                 } catch (StorageException e) {
@@ -58,6 +100,9 @@ public class MailCommand extends Command {
                         return;
                     }
                 }
+                if (!checkRateLimit(commandSender, RateLimiter.Operation.LIST)) {
+                    return;
+                }
                 try {
                     plugin.listMessages(commandSender, start, true, true);
                 } catch (StorageException e) {
@@ -66,16 +111,87 @@ public class MailCommand extends Command {
                 }
                 break;
             }
+            case "sent": {
+                int start = 1;
+                if (args.length >= 2) {
+                    try {
+                        start = Integer.parseInt(args[1]);
+                    } catch (NumberFormatException e) {
+                        commandSender.sendMessage(ChatUtil.parseBBCode(plugin.messages.wrongSyntaxSent));
+                        return;
+                    }
+                }
+                if (!checkRateLimit(commandSender, RateLimiter.Operation.LIST)) {
+                    return;
+                }
+                try {
+                    plugin.listSentMessages(commandSender, start);
+                } catch (StorageException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Failed to show sent mails to player", e);
+                    commandSender.sendMessage(ChatUtil.parseBBCode(plugin.messages.commandError.replace("%error%", e.getMessage())));
+                }
+                break;
+            }
+            case "search": {
+                if (args.length < 2) {
+                    commandSender.sendMessage(ChatUtil.parseBBCode(plugin.messages.wrongSyntaxSearch));
+                    return;
+                }
+                // /mail search [start] <words>, the start is added by the next link of the header
+                int start = 1;
+                int firstWord = 1;
+                if (args.length >= 3 && args[1].matches("\\d+")) {
+                    start = Integer.parseInt(args[1]);
+                    firstWord = 2;
+                }
+                if (!checkRateLimit(commandSender, RateLimiter.Operation.LIST)) {
+                    return;
+                }
+                StringBuilder terms = new StringBuilder();
+                for (int i = firstWord; i < args.length; i++) {
+                    terms.append(args[i]).append(" ");
+                }
+                try {
+                    plugin.searchMessages(commandSender, terms.toString(), start);
+                } catch (StorageException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Failed to search mails of player", e);
+                    commandSender.sendMessage(ChatUtil.parseBBCode(plugin.messages.commandError.replace("%error%", e.getMessage())));
+                }
+                break;
+            }
             case "sendall": {
                 if (!commandSender.hasPermission(Permissions.COMMAND_SENDALL)) {
                     commandSender.sendMessage(ChatUtil.parseBBCode(plugin.messages.noPermission));
                     return;
                 }
+                if (args.length == 2 && args[1].equalsIgnoreCase("cancel")) {
+                    if (!SendAllJob.cancelRunning()) {
+                        commandSender.sendMessage(ChatUtil.parseBBCode(plugin.messages.sendallNotRunning));
+                    }
+                    return;
+                }
+                if (!checkRateLimit(commandSender, RateLimiter.Operation.SEND)) {
+                    return;
+                }
+                int firstWord = 1;
+                long deliveryTime = 0;
+                if (args.length >= 3 && isDeliveryOption(args[1])) {
+                    deliveryTime = parseDeliveryTime(args[1], args[2]);
+                    if (deliveryTime < 0) {
+                        commandSender.sendMessage(ChatUtil.parseBBCode(plugin.messages.invalidDeliveryTime));
+                        return;
+                    }
+                    firstWord = 3;
+                }
                 StringBuilder text = new StringBuilder();
-                for (int i = 1; i < args.length; i++) {
+                for (int i = firstWord; i < args.length; i++) {
                     text.append(args[i]).append(" ");
                 }
-                plugin.sendMailToAll(commandSender, text.toString());
+                if (deliveryTime > 0) {
+                    plugin.scheduleMailToAll(commandSender, text.toString(), deliveryTime);
+                } else {
+                    plugin.sendMailToAll(commandSender, text.toString());
+                }
                 break;
             }
             case "reload": {
@@ -97,6 +213,24 @@ public class MailCommand extends Command {
                 }
                 break;
             }
+            case "migrate": {
+                if (!commandSender.hasPermission(Permissions.COMMAND_ADMIN)) {
+                    commandSender.sendMessage(ChatUtil.parseBBCode(plugin.messages.noPermission));
+                    return;
+                }
+                if (args.length < 3 || !StorageMigration.STORAGE_TYPES.contains(args[1].toLowerCase())
+                        || !StorageMigration.STORAGE_TYPES.contains(args[2].toLowerCase())
+                        || args[1].equalsIgnoreCase(args[2])
+                        || (args.length >= 4 && !args[3].equalsIgnoreCase("restart"))) {
+                    commandSender.sendMessage(ChatUtil.parseBBCode("&cWrong syntax! Use &b[suggest=/mail migrate ]/mail migrate <flatfile|mysql|sqlite> <flatfile|mysql|sqlite> [restart][/suggest]"));
+                    return;
+                }
+                StorageMigration migration = new StorageMigration(plugin, commandSender, args[1].toLowerCase(), args[2].toLowerCase(), args.length >= 4);
+                if (!migration.start()) {
+                    commandSender.sendMessage(ChatUtil.parseBBCode("&cBungeeMail: &fA migration is already running."));
+                }
+                break;
+            }
             case "send": {
                 if (!commandSender.hasPermission(Permissions.COMMAND_SEND)) {
                     commandSender.sendMessage(ChatUtil.parseBBCode(plugin.messages.noPermission));
@@ -106,12 +240,29 @@ public class MailCommand extends Command {
                     commandSender.sendMessage(ChatUtil.parseBBCode(plugin.messages.wrongSyntaxSend));
                     return;
                 }
+                if (!checkRateLimit(commandSender, RateLimiter.Operation.SEND)) {
+                    return;
+                }
                 String target = args[1];
+                int firstWord = 2;
+                long deliveryTime = 0;
+                if (args.length >= 4 && isDeliveryOption(args[2])) {
+                    deliveryTime = parseDeliveryTime(args[2], args[3]);
+                    if (deliveryTime < 0) {
+                        commandSender.sendMessage(ChatUtil.parseBBCode(plugin.messages.invalidDeliveryTime));
+                        return;
+                    }
+                    firstWord = 4;
+                }
                 StringBuilder text = new StringBuilder();
-                for (int i = 2; i < args.length; i++) {
+                for (int i = firstWord; i < args.length; i++) {
                     text.append(args[i]).append(" ");
                 }
-                plugin.sendMail(commandSender, target, text.toString());
+                if (deliveryTime > 0) {
+                    plugin.scheduleMail(commandSender, target, text.toString(), deliveryTime);
+                } else {
+                    plugin.sendMail(commandSender, target, text.toString());
+                }
                 break;
             }
             case "help": {
@@ -123,6 +274,9 @@ public class MailCommand extends Command {
                     commandSender.sendMessage(ChatUtil.parseBBCode(plugin.messages.wrongSyntaxDelete));
                     return;
                 }
+                if (!checkRateLimit(commandSender, RateLimiter.Operation.DELETE)) {
+                    return;
+                }
                 UUID senderUUID = commandSender instanceof ProxiedPlayer ? ((ProxiedPlayer) commandSender).getUniqueId() : BungeeMail.CONSOLE_UUID;
                 if (args[1].equalsIgnoreCase("all")) {
                     try {
@@ -161,6 +315,9 @@ public class MailCommand extends Command {
                     commandSender.sendMessage(ChatUtil.parseBBCode(plugin.messages.help));
                     return;
                 }
+                if (!checkRateLimit(commandSender, RateLimiter.Operation.SEND)) {
+                    return;
+                }
                 // send mail
                 String target = args[0];
                 StringBuilder text = new StringBuilder();
@@ -172,4 +329,61 @@ public class MailCommand extends Command {
         }
     }
 
+    private static boolean isDeliveryOption(String arg) {
+        return arg.equalsIgnoreCase("--at") || arg.equalsIgnoreCase("--in");
+    }
+
+    /**
+     * Parses the delivery time of a scheduled mail. --at takes a time of day as HH:mm, the mail is delivered the next
+     * time the clock of the proxy shows that time. --in takes a delay like 30m, 2h or 1d12h.
+     *
+     * @return the delivery time in milliseconds, or -1 if the value is invalid
+     */
+    private static long parseDeliveryTime(String option, String value) {
+        if (option.equalsIgnoreCase("--at")) {
+            LocalTime time;
+            try {
+                time = LocalTime.parse(value, TIME_OF_DAY);
+            } catch (DateTimeParseException e) {
+                return -1;
+            }
+            ZonedDateTime now = ZonedDateTime.now();
+            ZonedDateTime delivery = now.with(time);
+            if (!delivery.isAfter(now)) {
+                delivery = delivery.plusDays(1);
+            }
+            return delivery.toInstant().toEpochMilli();
+        }
+        Matcher matcher = DELAY.matcher(value.toLowerCase());
+        if (value.isEmpty() || !matcher.matches()) {
+            return -1;
+        }
+        long delay = 0;
+        try {
+            for (int i = 0; i < DELAY_UNITS.length; i++) {
+                if (matcher.group(i + 1) != null) {
+                    delay = Math.addExact(delay, DELAY_UNITS[i].toMillis(Long.parseLong(matcher.group(i + 1))));
+                }
+            }
+            return delay > 0 ? Math.addExact(System.currentTimeMillis(), delay) : -1;
+        } catch (NumberFormatException | ArithmeticException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Checks whether the sender may use a command that accesses the storage and tells them if they may not.
+     *
+     * @return true if the command may be executed
+     */
+    private boolean checkRateLimit(CommandSender commandSender, RateLimiter.Operation operation) {
+        if (!(commandSender instanceof ProxiedPlayer) || commandSender.hasPermission(Permissions.BYPASS_RATE_LIMIT)) {
+            return true;
+        }
+        if (plugin.rateLimiter.tryAcquire(((ProxiedPlayer) commandSender).getUniqueId(), operation)) {
+            return true;
+        }
+        commandSender.sendMessage(ChatUtil.parseBBCode(plugin.messages.rateLimited));
+        return false;
+    }
 }
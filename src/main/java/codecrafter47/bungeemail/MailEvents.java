@@ -0,0 +1,112 @@
+package codecrafter47.bungeemail;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events emitted by the plugin, so BungeeMail shows up by name in recordings of the proxy.
+ * <p>
+ * JFR events cost next to nothing while they are not recorded: the JIT removes the allocation and
+ * {@link Event#shouldCommit()} is false, so the fields are never filled in. Events are only created if the JVM ships
+ * JFR (Java 8u262 and newer), callers check {@link #AVAILABLE} before touching any of the event classes.
+ */
+final class MailEvents {
+    static final boolean AVAILABLE = isAvailable();
+
+    private MailEvents() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    @Name("codecrafter47.bungeemail.Command")
+    @Label("Mail Command")
+    @Category({"BungeeMail"})
+    static class Command extends Event {
+        @Label("Subcommand")
+        String subcommand;
+        @Label("Player")
+        String player;
+    }
+
+    @Name("codecrafter47.bungeemail.StorageCall")
+    @Label("Storage Call")
+    @Description("A call to the storage backend")
+    @Category({"BungeeMail", "Storage"})
+    static class StorageCall extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Backend")
+        String backend;
+        @Label("Rows")
+        @Description("Number of mails, players or names returned or modified")
+        int rows;
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("codecrafter47.bungeemail.InboxLock")
+    @Label("Inbox Lock Wait")
+    @Description("Time spent waiting for the lock of an inbox of the flat-file backend")
+    @Category({"BungeeMail", "Storage"})
+    @Threshold("1 ms")
+    static class InboxLock extends Event {
+        @Label("Recipient")
+        String recipient;
+        @Label("Write Lock")
+        boolean write;
+    }
+
+    @Name("codecrafter47.bungeemail.FlatFileSave")
+    @Label("Flat-File Save")
+    @Category({"BungeeMail", "Storage"})
+    static class FlatFileSave extends Event {
+        @Label("Inboxes Written")
+        int inboxes;
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+        @Label("Lock Wait")
+        @Description("Time spent waiting for a concurrent save to finish")
+        @Timespan(Timespan.NANOSECONDS)
+        long lockWait;
+        @Label("Inboxes Loaded")
+        @Description("Number of inboxes in memory after evicting inboxes of offline players")
+        int loadedInboxes;
+    }
+
+    @Name("codecrafter47.bungeemail.FlatFileLoad")
+    @Label("Flat-File Load")
+    @Category({"BungeeMail", "Storage"})
+    static class FlatFileLoad extends Event {
+        @Label("Users")
+        int users;
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("codecrafter47.bungeemail.TabCompleteRefresh")
+    @Label("Tab Complete Refresh")
+    @Category({"BungeeMail"})
+    static class TabCompleteRefresh extends Event {
+        @Label("Names")
+        int names;
+        @Label("Failed")
+        boolean failed;
+    }
+}
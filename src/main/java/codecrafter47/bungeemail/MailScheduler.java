@@ -0,0 +1,349 @@
+package codecrafter47.bungeemail;
+
+import codecrafter47.util.chat.ChatUtil;
+import com.google.common.base.Charsets;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Delivers mails at a later time, e.g. /mail send Player --at 18:00 Hello.
+ * <p>
+ * Pending mails are kept in a single {@link TimingWheel} advanced once a second by {@link #tick()}, so there is no
+ * scheduler task per mail. Mails that become due in the same second are delivered together through the
+ * {@link MailService}, which saves mails with the same sender and text at once and applies the inbox quota. Mails to a
+ * full mailbox are dropped and the sender is told.
+ * <p>
+ * Scheduled mails are appended to a file as one line of json each and synced to disk before the sender is told the
+ * mail has been scheduled. Delivered mails are recorded by appending their id, the file is rewritten without them
+ * when it is loaded and once it mostly consists of delivered mails. Mails which became due while the proxy was
+ * offline are delivered right after the next start. A crash between saving a mail and recording it as delivered
+ * delivers that mail again.
+ */
+class MailScheduler {
+    private static final long TICK = TimeUnit.SECONDS.toMillis(1);
+    private static final int WHEEL_SIZE = 60;
+    private static final long RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+    private static final int COMPACT_THRESHOLD = 1000;
+
+    private final BungeeMail plugin;
+    private final File file;
+    private final TimingWheel<ScheduledMail> wheel = new TimingWheel<>(TICK, WHEEL_SIZE, System.currentTimeMillis());
+    private final Map<Long, ScheduledMail> pending = new LinkedHashMap<>();
+    private List<ScheduledMail> due = new ArrayList<>();
+    private long nextId = 1;
+    private int deliveredLines = 0;
+
+    MailScheduler(BungeeMail plugin, File file) {
+        this.plugin = plugin;
+        this.file = file;
+    }
+
+    /**
+     * Loads the pending mails from the file.
+     */
+    synchronized void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    readLine(line);
+                } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                    plugin.getLogger().log(Level.WARNING, "Skipping malformed line in " + file, e);
+                }
+            }
+        }
+        for (ScheduledMail mail : pending.values()) {
+            nextId = Math.max(nextId, mail.id + 1);
+            if (!wheel.add(mail, mail.due)) {
+                due.add(mail);
+            }
+        }
+        compact();
+    }
+
+    /**
+     * Schedules a mail to one or more players. The mails to all recipients are written to the file at once.
+     *
+     * @param time time at which the mail is delivered
+     */
+    synchronized void schedule(String senderName, UUID senderUUID, Collection<UUID> recipients, String message, long time) throws IOException {
+        add(senderName, senderUUID, recipients, message, time);
+    }
+
+    /**
+     * Schedules a mail to all players like /mail sendall.
+     *
+     * @param time time at which the mail is delivered
+     */
+    synchronized void scheduleToAll(String senderName, UUID senderUUID, String message, long time) throws IOException {
+        // a mail without recipient is sent to all players
+        add(senderName, senderUUID, Collections.singletonList(null), message, time);
+    }
+
+    private void add(String senderName, UUID senderUUID, Collection<UUID> recipients, String message, long time) throws IOException {
+        List<ScheduledMail> mails = new ArrayList<>(recipients.size());
+        StringWriter lines = new StringWriter();
+        for (UUID recipient : recipients) {
+            ScheduledMail mail = new ScheduledMail(nextId++, senderName, senderUUID, recipient, message, time);
+            writeMail(new JsonWriter(lines), mail);
+            lines.write('\n');
+            mails.add(mail);
+        }
+        append(lines.toString());
+        for (ScheduledMail mail : mails) {
+            pending.put(mail.id, mail);
+            if (!wheel.add(mail, mail.due)) {
+                due.add(mail);
+            }
+        }
+    }
+
+    /**
+     * Delivers the mails which are due. Runs once a second.
+     */
+    void tick() {
+        List<ScheduledMail> batch;
+        synchronized (this) {
+            wheel.advance(System.currentTimeMillis(), due);
+            if (due.isEmpty()) {
+                return;
+            }
+            batch = due;
+            due = new ArrayList<>();
+        }
+        try (SlowOperationLog.Trace ignored = plugin.slowOperationLog.start("scheduled delivery", null)) {
+            deliver(batch);
+        }
+    }
+
+    private void deliver(List<ScheduledMail> batch) {
+        Map<List<Object>, List<ScheduledMail>> bySender = new LinkedHashMap<>();
+        List<ScheduledMail> delivered = new ArrayList<>();
+        List<ScheduledMail> failed = new ArrayList<>();
+        for (ScheduledMail mail : batch) {
+            if (mail.recipient == null) {
+                // a sendall of its own, the console is informed about its progress
+                if (new SendAllJob(plugin, plugin.getProxy().getConsole(), mail.senderName, mail.senderUUID, mail.message, System.currentTimeMillis()).start()) {
+                    delivered.add(mail);
+                } else {
+                    failed.add(mail);
+                }
+                continue;
+            }
+            bySender.computeIfAbsent(Arrays.asList(mail.senderName, mail.senderUUID), key -> new ArrayList<>()).add(mail);
+        }
+
+        // the mail service saves mails with the same text together and applies the inbox quota
+        for (List<ScheduledMail> mails : bySender.values()) {
+            List<MailService.Mail> outgoing = new ArrayList<>(mails.size());
+            for (ScheduledMail mail : mails) {
+                outgoing.add(new MailService.Mail(mail.recipient, mail.message));
+            }
+            List<MailService.Result> results = plugin.getMailService().deliver(mails.get(0).senderName, mails.get(0).senderUUID, outgoing, false);
+            int failures = 0;
+            for (int i = 0; i < mails.size(); i++) {
+                ScheduledMail mail = mails.get(i);
+                switch (results.get(i)) {
+                    case FAILED:
+                        failed.add(mail);
+                        failures++;
+                        break;
+                    case MAILBOX_FULL:
+                        notifyMailboxFull(mail);
+                        delivered.add(mail);
+                        break;
+                    default:
+                        delivered.add(mail);
+                }
+            }
+            if (failures > 0) {
+                plugin.getLogger().warning("Unable to deliver " + failures + " scheduled mails from " + mails.get(0).senderName + ", trying again in a minute");
+            }
+        }
+
+        synchronized (this) {
+            long retry = System.currentTimeMillis() + RETRY_DELAY;
+            for (ScheduledMail mail : failed) {
+                if (!wheel.add(mail, retry)) {
+                    due.add(mail);
+                }
+            }
+            if (!delivered.isEmpty()) {
+                try {
+                    markDelivered(delivered);
+                } catch (IOException e) {
+                    plugin.getLogger().log(Level.WARNING, "Failed to record delivered scheduled mails in " + file + ", they may be delivered again after a restart", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells the sender of a scheduled mail that it has been dropped because the mailbox of the recipient is full.
+     */
+    private void notifyMailboxFull(ScheduledMail mail) {
+        String receiver;
+        try {
+            receiver = plugin.getStorage().getNameForUUID(mail.recipient);
+        } catch (StorageException e) {
+            receiver = null;
+        }
+        String message = plugin.messages.scheduledMailboxFull.replace("%receiver%", "[nobbcode]" + (receiver != null ? receiver : mail.recipient.toString()) + "[/nobbcode]");
+        ProxiedPlayer sender = plugin.getProxy().getPlayer(mail.senderUUID);
+        if (sender != null) {
+            sender.sendMessage(ChatUtil.parseBBCode(message));
+        } else {
+            // offline senders learn about it from the console log
+            plugin.getProxy().getConsole().sendMessage(ChatUtil.parseBBCode("&aBungeeMail: &f" + mail.senderName + ": " + message));
+        }
+    }
+
+    private void markDelivered(List<ScheduledMail> mails) throws IOException {
+        StringWriter lines = new StringWriter();
+        for (ScheduledMail mail : mails) {
+            pending.remove(mail.id);
+            JsonWriter writer = new JsonWriter(lines);
+            writer.beginObject();
+            writer.name("delivered").value(mail.id);
+            writer.endObject();
+            writer.flush();
+            lines.write('\n');
+        }
+        append(lines.toString());
+        deliveredLines += mails.size();
+        if (deliveredLines >= COMPACT_THRESHOLD && deliveredLines > pending.size()) {
+            compact();
+        }
+    }
+
+    private void append(String lines) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(lines.getBytes(Charsets.UTF_8));
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * Rewrites the file with only the pending mails.
+     */
+    private void compact() throws IOException {
+        if (pending.isEmpty()) {
+            Files.deleteIfExists(file.toPath());
+            deliveredLines = 0;
+            return;
+        }
+        File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8));
+            for (ScheduledMail mail : pending.values()) {
+                writeMail(new JsonWriter(writer), mail);
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deliveredLines = 0;
+    }
+
+    private static void writeMail(JsonWriter writer, ScheduledMail mail) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(mail.id);
+        writer.name("senderName").value(mail.senderName);
+        writer.name("senderUUID").value(mail.senderUUID.toString());
+        if (mail.recipient != null) {
+            writer.name("recipient").value(mail.recipient.toString());
+        }
+        writer.name("message").value(mail.message);
+        writer.name("due").value(mail.due);
+        writer.endObject();
+        writer.flush();
+    }
+
+    private void readLine(String line) throws IOException {
+        long id = 0;
+        long delivered = 0;
+        String senderName = null;
+        UUID senderUUID = null;
+        UUID recipient = null;
+        String message = null;
+        long time = 0;
+        try (JsonReader in = new JsonReader(new StringReader(line))) {
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "id":
+                        id = in.nextLong();
+                        break;
+                    case "delivered":
+                        delivered = in.nextLong();
+                        break;
+                    case "senderName":
+                        senderName = in.nextString();
+                        break;
+                    case "senderUUID":
+                        senderUUID = UUID.fromString(in.nextString());
+                        break;
+                    case "recipient":
+                        recipient = UUID.fromString(in.nextString());
+                        break;
+                    case "message":
+                        message = in.nextString();
+                        break;
+                    case "due":
+                        time = in.nextLong();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+        }
+        if (delivered != 0) {
+            pending.remove(delivered);
+            return;
+        }
+        if (id == 0 || senderUUID == null || message == null) {
+            throw new IOException("Incomplete scheduled mail: " + line);
+        }
+        pending.put(id, new ScheduledMail(id, senderName, senderUUID, recipient, message, time));
+    }
+
+    private static class ScheduledMail {
+        private final long id;
+        private final String senderName;
+        private final UUID senderUUID;
+        private final UUID recipient;
+        private final String message;
+        private final long due;
+
+        private ScheduledMail(long id, String senderName, UUID senderUUID, UUID recipient, String message, long due) {
+            this.id = id;
+            this.senderName = senderName;
+            this.senderUUID = senderUUID;
+            this.recipient = recipient;
+            this.message = message;
+            this.due = due;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package codecrafter47.bungeemail;
+
+import codecrafter47.util.chat.ChatUtil;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+
+/**
+ * Lets other plugins send mails, e.g. rewards or ticket replies.
+ * <p>
+ * Get it with {@link BungeeMail#getMailService()}. All methods return immediately, the mails are saved in the
+ * background once the storage has been loaded. Mails of a batch with the same text are saved together in chunks of
+ * sendall_chunk_size, so sending thousands of mails costs a few writes instead of one per mail. The text is handled
+ * like a mail sent with /mail send: formatting is stripped and links become clickable. Inbox quotas apply, recipients
+ * that are online are notified.
+ */
+public class MailService {
+    private final BungeeMail plugin;
+
+    MailService(BungeeMail plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Sends a single mail.
+     *
+     * @param senderName name shown as the sender of the mail
+     * @param senderUUID uuid of the sender, the mail is listed by /mail sent of that player
+     * @return the result, the future is never completed exceptionally
+     */
+    public CompletableFuture<Result> send(String senderName, UUID senderUUID, UUID recipient, String text) {
+        return send(senderName, senderUUID, ImmutableList.of(new Mail(recipient, text))).thenApply(results -> results.get(0));
+    }
+
+    /**
+     * Sends a batch of mails from the same sender.
+     *
+     * @param senderName name shown as the sender of the mails
+     * @param senderUUID uuid of the sender, the mails are listed by /mail sent of that player
+     * @return the result of each mail in the same order as the mails, the future is never completed exceptionally
+     */
+    public CompletableFuture<List<Result>> send(String senderName, UUID senderUUID, List<Mail> mails) {
+        Preconditions.checkNotNull(senderName, "senderName");
+        Preconditions.checkNotNull(senderUUID, "senderUUID");
+        List<Mail> batch = ImmutableList.copyOf(mails);
+        CompletableFuture<List<Result>> future = new CompletableFuture<>();
+        plugin.getStorageReady().whenComplete((ready, loadFailure) -> {
+            if (loadFailure != null) {
+                future.complete(Collections.nCopies(batch.size(), Result.FAILED));
+                return;
+            }
+            plugin.getProxy().getScheduler().runAsync(plugin, () -> {
+                try (SlowOperationLog.Trace ignored = plugin.slowOperationLog.start("api send (" + batch.size() + " mails)", senderName)) {
+                    future.complete(deliver(senderName, senderUUID, batch, true));
+                } catch (RuntimeException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Unexpected exception while sending mails", e);
+                    future.complete(Collections.nCopies(batch.size(), Result.FAILED));
+                }
+            });
+        });
+        return future;
+    }
+
+    /**
+     * Sends the mails on the calling thread.
+     *
+     * @param format false if the texts have already been formatted by {@link BungeeMail#formatMessage(String)}
+     * @return the result of each mail in the same order as the mails
+     */
+    List<Result> deliver(String senderName, UUID senderUUID, List<Mail> batch, boolean format) {
+        IStorageBackend storage = plugin.getStorage();
+        Result[] results = new Result[batch.size()];
+        Map<String, List<Integer>> byText = new LinkedHashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            String text = batch.get(i).text.trim();
+            if (text.isEmpty()) {
+                results[i] = Result.EMPTY;
+            } else {
+                byText.computeIfAbsent(format ? BungeeMail.formatMessage(text) : text, key -> new ArrayList<>()).add(i);
+            }
+        }
+
+        try {
+            checkQuota(storage, batch, results);
+        } catch (StorageException e) {
+            plugin.getLogger().log(Level.WARNING, "Unable to check the inbox quota of " + batch.size() + " recipients", e);
+            Arrays.fill(results, Result.FAILED);
+            return Arrays.asList(results);
+        }
+
+        long time = System.currentTimeMillis();
+        int chunkSize = Math.max(1, plugin.config.getInt("sendall_chunk_size", 500));
+        Set<UUID> notify = new LinkedHashSet<>();
+        for (Map.Entry<String, List<Integer>> entry : byText.entrySet()) {
+            List<Integer> accepted = new ArrayList<>();
+            for (int index : entry.getValue()) {
+                if (results[index] == null) {
+                    accepted.add(index);
+                }
+            }
+            for (List<Integer> chunk : Lists.partition(accepted, chunkSize)) {
+                List<UUID> recipients = new ArrayList<>(chunk.size());
+                for (int index : chunk) {
+                    recipients.add(batch.get(index).recipient);
+                }
+                Result result;
+                try {
+                    storage.saveMessages(senderName, senderUUID, recipients, entry.getKey(), false, time);
+                    result = Result.SENT;
+                    notify.addAll(recipients);
+                } catch (StorageException e) {
+                    plugin.getLogger().log(Level.WARNING, "Unable to save " + chunk.size() + " mails from " + senderName, e);
+                    result = Result.FAILED;
+                }
+                for (int index : chunk) {
+                    results[index] = result;
+                }
+            }
+        }
+
+        List<ProxiedPlayer> online = new ArrayList<>();
+        for (UUID recipient : notify) {
+            ProxiedPlayer player = plugin.getProxy().getPlayer(recipient);
+            if (player != null) {
+                online.add(player);
+            } else if (recipient.equals(BungeeMail.CONSOLE_UUID)) {
+                plugin.getProxy().getConsole().sendMessage(ChatUtil.parseBBCode(plugin.messages.receivedNewMessage));
+            }
+        }
+        if (!online.isEmpty()) {
+            plugin.broadcastNewMailNotification(online);
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Sets the result of mails to recipients whose mailbox is full to {@link Result#MAILBOX_FULL}, evicting the oldest
+     * read mails if configured to do so. The inbox sizes of all recipients are fetched at once.
+     */
+    private void checkQuota(IStorageBackend storage, List<Mail> batch, Result[] results) throws StorageException {
+        int maxUnread = plugin.config.getInt("quota.max_unread", 0);
+        int maxTotal = plugin.config.getInt("quota.max_total", 0);
+        if (maxUnread <= 0 && maxTotal <= 0) {
+            return;
+        }
+        Set<UUID> recipients = new HashSet<>();
+        for (int i = 0; i < batch.size(); i++) {
+            if (results[i] == null) {
+                recipients.add(batch.get(i).recipient);
+            }
+        }
+        Map<UUID, Integer> unread = maxUnread > 0 ? new HashMap<>(storage.countMessages(recipients, true)) : null;
+        Map<UUID, Integer> total = maxTotal > 0 ? new HashMap<>(storage.countMessages(recipients, false)) : null;
+        boolean evict = plugin.config.getBoolean("quota.evict_oldest_read", true);
+        // mails in this batch count towards the quota as well
+        for (int i = 0; i < batch.size(); i++) {
+            if (results[i] != null) {
+                continue;
+            }
+            UUID recipient = batch.get(i).recipient;
+            if (unread != null && unread.getOrDefault(recipient, 0) >= maxUnread) {
+                results[i] = Result.MAILBOX_FULL;
+                continue;
+            }
+            if (total != null) {
+                int excess = total.getOrDefault(recipient, 0) - maxTotal + 1;
+                if (excess > 0 && (!evict || storage.deleteOldestRead(recipient, excess) < excess)) {
+                    results[i] = Result.MAILBOX_FULL;
+                    continue;
+                }
+                total.put(recipient, total.getOrDefault(recipient, 0) + 1 - Math.max(excess, 0));
+            }
+            if (unread != null) {
+                unread.merge(recipient, 1, Integer::sum);
+            }
+        }
+    }
+
+    /**
+     * A mail to send with {@link #send(String, UUID, List)}.
+     */
+    public static final class Mail {
+        private final UUID recipient;
+        private final String text;
+
+        public Mail(UUID recipient, String text) {
+            this.recipient = Preconditions.checkNotNull(recipient, "recipient");
+            this.text = Preconditions.checkNotNull(text, "text");
+        }
+
+        public UUID getRecipient() {
+            return recipient;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    public enum Result {
+        /**
+         * The mail has been saved.
+         */
+        SENT,
+        /**
+         * The text of the mail is empty.
+         */
+        EMPTY,
+        /**
+         * The mailbox of the recipient is full.
+         */
+        MAILBOX_FULL,
+        /**
+         * The mail could not be saved, details have been logged.
+         */
+        FAILED
+    }
+}
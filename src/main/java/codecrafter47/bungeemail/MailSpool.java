@@ -0,0 +1,229 @@
+package codecrafter47.bungeemail;
+
+import com.google.common.base.Charsets;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only file holding mails that could not be saved because the database was unavailable. Each mail is one
+ * line of json, appended and synced to disk before the sender is told the mail has been sent.
+ * <p>
+ * {@link #replay(MySQLBackend, int)} saves the mails to the database in batches. The position up to which mails have
+ * been saved is kept in a separate offset file, the spool is deleted once it has been drained completely. A crash
+ * between saving a batch and writing the offset saves that batch again on the next replay.
+ * <p>
+ * All state lives in the files, so backends opened for a migration can share the spool of the running backend. A
+ * global lock serializes access to the files, it is not held while a batch is saved to the database, so a slow
+ * database doesn't block senders appending to the spool.
+ */
+class MailSpool {
+    // guards the files
+    private static final Object LOCK = new Object();
+    // held while replaying, so only one backend replays at a time
+    private static final Object REPLAY_LOCK = new Object();
+
+    private final File file;
+    private final File offsetFile;
+    private final Logger logger;
+
+    MailSpool(File file, Logger logger) {
+        this.file = file;
+        this.offsetFile = new File(file.getParentFile(), file.getName() + ".offset");
+        this.logger = logger;
+    }
+
+    void append(String senderName, UUID senderUUID, Collection<UUID> recipients, String message, boolean read, long time) throws IOException {
+        StringWriter lines = new StringWriter();
+        for (UUID recipient : recipients) {
+            JsonWriter writer = new JsonWriter(lines);
+            writer.beginObject();
+            writer.name("senderName").value(senderName);
+            writer.name("senderUUID").value(senderUUID.toString());
+            writer.name("recipient").value(recipient.toString());
+            writer.name("message").value(message);
+            writer.name("read").value(read);
+            writer.name("time").value(time);
+            writer.endObject();
+            writer.flush();
+            lines.write('\n');
+        }
+        byte[] data = lines.toString().getBytes(Charsets.UTF_8);
+        synchronized (LOCK) {
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                if (out.getChannel().position() > 0 && !endsWithNewline()) {
+                    // terminate a line left incomplete by a crash, so it doesn't swallow this mail
+                    out.write('\n');
+                }
+                out.write(data);
+                out.getFD().sync();
+            }
+        }
+    }
+
+    private boolean endsWithNewline() throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(in.length() - 1);
+            return in.read() == '\n';
+        }
+    }
+
+    /**
+     * Saves spooled mails to the database until the spool is empty or saving fails.
+     *
+     * @return number of mails saved
+     */
+    int replay(MySQLBackend backend, int batchSize) {
+        int replayed = 0;
+        synchronized (REPLAY_LOCK) {
+            try {
+                while (true) {
+                    List<Message> batch = new ArrayList<>(batchSize);
+                    long end;
+                    synchronized (LOCK) {
+                        long offset = readOffset();
+                        end = readBatch(offset, batchSize, batch);
+                        if (end == offset) {
+                            if (offset > 0 && offset >= file.length()) {
+                                // drained
+                                Files.deleteIfExists(file.toPath());
+                                Files.deleteIfExists(offsetFile.toPath());
+                            }
+                            return replayed;
+                        }
+                    }
+                    // senders can keep spooling while the batch is saved
+                    if (!batch.isEmpty()) {
+                        backend.saveMessages(batch);
+                        replayed += batch.size();
+                    }
+                    synchronized (LOCK) {
+                        writeOffset(end);
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to read " + file, e);
+            } catch (StorageException e) {
+                // still unavailable, try again later
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * @return true if there are mails which have not been saved to the database
+     */
+    boolean isEmpty() {
+        return !file.exists();
+    }
+
+    /**
+     * Reads up to limit complete lines starting at the given offset.
+     *
+     * @return the offset after the last line read
+     */
+    private long readBatch(long offset, int limit, List<Message> batch) throws IOException {
+        if (!file.exists()) {
+            return offset;
+        }
+        try (FileInputStream fin = new FileInputStream(file)) {
+            fin.getChannel().position(offset);
+            InputStream in = new BufferedInputStream(fin);
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long position = offset;
+            int b;
+            while (batch.size() < limit && (b = in.read()) != -1) {
+                position++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                offset = position;
+                try {
+                    batch.add(readMessage(new String(line.toByteArray(), Charsets.UTF_8)));
+                } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                    logger.log(Level.WARNING, "Skipping malformed line in " + file, e);
+                }
+                line.reset();
+            }
+        }
+        return offset;
+    }
+
+    private static Message readMessage(String line) throws IOException {
+        String senderName = null;
+        UUID senderUUID = null;
+        UUID recipient = null;
+        String message = null;
+        boolean read = false;
+        long time = 0;
+        try (JsonReader in = new JsonReader(new StringReader(line))) {
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "senderName":
+                        senderName = in.nextString();
+                        break;
+                    case "senderUUID":
+                        senderUUID = UUID.fromString(in.nextString());
+                        break;
+                    case "recipient":
+                        recipient = UUID.fromString(in.nextString());
+                        break;
+                    case "message":
+                        message = in.nextString();
+                        break;
+                    case "read":
+                        read = in.nextBoolean();
+                        break;
+                    case "time":
+                        time = in.nextLong();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+        }
+        if (senderUUID == null || recipient == null || message == null) {
+            throw new IOException("Incomplete mail: " + line);
+        }
+        return new MySQLBackend.SQLMessage(MySQLBackend.SQLMessage.SPOOLED, senderName, senderUUID, recipient, message, read, time);
+    }
+
+    private long readOffset() throws IOException {
+        if (!offsetFile.exists()) {
+            return 0;
+        }
+        String content = new String(Files.readAllBytes(offsetFile.toPath()), Charsets.UTF_8).trim();
+        try {
+            return content.isEmpty() ? 0 : Long.parseLong(content);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed " + offsetFile, e);
+        }
+    }
+
+    private void writeOffset(long offset) throws IOException {
+        File tmpFile = new File(offsetFile.getParentFile(), offsetFile.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            out.write(Long.toString(offset).getBytes(Charsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(tmpFile.toPath(), offsetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -16,18 +16,41 @@ public class Messages {
     public final String emptyMail;
     public final String unknownTarget;
     public final String messageSent;
+    public final String messageScheduled;
+    public final String invalidDeliveryTime;
     public final String receivedNewMessage;
     public final String commandError;
     public final String messageSentToAll;
+    public final String messageSentToMany;
+    public final String mailboxesFull;
+    public final String scheduledMailboxFull;
+    public final String unknownTargets;
+    public final String noRecipients;
+    public final String sendallProgress;
+    public final String sendallCancelled;
+    public final String sendallRunning;
+    public final String sendallNotRunning;
     public final String help;
     public final String wrongSyntaxList;
     public final String wrongSyntaxListall;
     public final String wrongSyntaxSend;
     public final String wrongSyntaxDelete;
     public final String noPermission;
+    public final String rateLimited;
+    public final String searchHeader;
+    public final String sentHeader;
+    public final String sentMessage;
+    public final String sentRead;
+    public final String sentUnread;
+    public final String noSentMessages;
+    public final String wrongSyntaxSent;
+    public final String noSearchResults;
+    public final String wrongSyntaxSearch;
+    public final String mailboxFull;
     public final String deletedAll;
     public final String deletedRead;
     public final String deletedSingle;
+    public final String starting;
 
     public Messages(Configuration config) {
         noMessages = config.getString("noMessages");
@@ -42,18 +65,41 @@ public class Messages {
         emptyMail = config.getString("emptyMail");
         unknownTarget = config.getString("unknownTarget");
         messageSent = config.getString("messageSent");
+        messageScheduled = config.getString("messageScheduled");
+        invalidDeliveryTime = config.getString("invalidDeliveryTime");
         receivedNewMessage = config.getString("receivedNewMessage");
         commandError = config.getString("commandError");
         messageSentToAll = config.getString("messageSentToAll");
+        messageSentToMany = config.getString("messageSentToMany");
+        mailboxesFull = config.getString("mailboxesFull");
+        scheduledMailboxFull = config.getString("scheduledMailboxFull");
+        unknownTargets = config.getString("unknownTargets");
+        noRecipients = config.getString("noRecipients");
+        sendallProgress = config.getString("sendallProgress");
+        sendallCancelled = config.getString("sendallCancelled");
+        sendallRunning = config.getString("sendallRunning");
+        sendallNotRunning = config.getString("sendallNotRunning");
         help = config.getString("help");
         wrongSyntaxList = config.getString("wrongSyntax.list");
         wrongSyntaxListall = config.getString("wrongSyntax.listall");
         wrongSyntaxSend = config.getString("wrongSyntax.send");
         wrongSyntaxDelete = config.getString("wrongSyntax.del");
         noPermission = config.getString("noPermission");
+        rateLimited = config.getString("rateLimited");
+        searchHeader = config.getString("searchHeader");
+        sentHeader = config.getString("sentHeader");
+        sentMessage = config.getString("sentMessage");
+        sentRead = config.getString("sentRead");
+        sentUnread = config.getString("sentUnread");
+        noSentMessages = config.getString("noSentMessages");
+        wrongSyntaxSent = config.getString("wrongSyntax.sent");
+        noSearchResults = config.getString("noSearchResults");
+        wrongSyntaxSearch = config.getString("wrongSyntax.search");
+        mailboxFull = config.getString("mailboxFull");
         deletedAll = config.getString("deletedAll");
         deletedRead = config.getString("deletedRead");
         deletedSingle = config.getString("deletedSingle");
+        starting = config.getString("starting");
 
     }
 }
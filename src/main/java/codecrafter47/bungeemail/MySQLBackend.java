@@ -1,17 +1,36 @@
 package codecrafter47.bungeemail;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
 import org.apache.commons.dbcp2.*;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 
 import javax.sql.DataSource;
+import java.io.File;
+import java.io.IOException;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 public class MySQLBackend implements IStorageBackend {
 
+    // maximum number of names per query of getUUIDsForNames
+    private static final int NAME_LOOKUP_BATCH_SIZE = 500;
+
     BungeeMail plugin;
     DataSource dataSource;
+    private PoolingDataSource<PoolableConnection> poolingDataSource;
+    private MySQLGroupCommit groupCommit = null;
+    private final InboxCounters counters = new InboxCounters();
+    private MySQLInboxCache inboxCache = null;
+    private MySQLReplicaSet replicas = null;
+    private ScheduledTask replicaMonitor = null;
+    private CircuitBreaker circuitBreaker = null;
+    private long slowCallNanos;
+    private MailSpool spool = null;
+    private ScheduledTask spoolReplayer = null;
 
     public MySQLBackend(BungeeMail plugin) {
         this.plugin = plugin;
@@ -21,11 +40,49 @@ public class MySQLBackend implements IStorageBackend {
                 statement.execute("CREATE TABLE IF NOT EXISTS bungeemail_mails (id int NOT NULL AUTO_INCREMENT,senderName varchar(20), senderUUID varchar(40), recipient varchar(40), `message` varchar(255), `read` boolean, `time` bigint, PRIMARY KEY (id))");
                 statement.execute("DROP TABLE IF EXISTS bungeemail_uuids");
                 statement.execute("CREATE TABLE IF NOT EXISTS bungeemail_uuids_v2 (username varchar(20) NOT NULL UNIQUE PRIMARY KEY, uuid varchar(40))");
+                createIndex(statement, "CREATE INDEX recipient_read ON bungeemail_mails (recipient, `read`)");
+                createIndex(statement, "CREATE FULLTEXT INDEX message_fulltext ON bungeemail_mails (message)");
+                createIndex(statement, "CREATE INDEX sender_time ON bungeemail_mails (senderUUID, `time`)");
+                createIndex(statement, "CREATE INDEX uuid ON bungeemail_uuids_v2 (uuid)");
             }
         } catch (SQLException e) {
             plugin.getLogger().warning("MySQL setup failed");
             throw new RuntimeException(e);
         }
+        if (plugin.config.getBoolean("mysql_group_commit", false)) {
+            groupCommit = new MySQLGroupCommit(this::getConnection, plugin.getLogger(), plugin.config.getLong("mysql_group_commit_max_delay", 5), plugin.config.getInt("mysql_group_commit_max_batch", 100));
+        }
+        if (plugin.config.getBoolean("mysql_inbox_cache", true)) {
+            inboxCache = new MySQLInboxCache(TimeUnit.SECONDS.toMillis(plugin.config.getLong("mysql_inbox_cache_expire", 60)));
+        }
+        List<String> replicaHosts = plugin.config.getStringList("mysql_replicas");
+        if (!replicaHosts.isEmpty()) {
+            replicas = new MySQLReplicaSet(replicaHosts, plugin.config.getString("mysql_database"), plugin.config.getString("mysql_username"), plugin.config.getString("mysql_password"),
+                    plugin.config.getLong("mysql_replica_max_lag", 5), plugin.config.getLong("mysql_read_your_writes_window", 10), plugin.getLogger());
+            replicaMonitor = plugin.getProxy().getScheduler().schedule(plugin, replicas::checkLag, 0, 5, TimeUnit.SECONDS);
+        }
+        if (plugin.config.getBoolean("mysql_circuit_breaker", true)) {
+            circuitBreaker = new CircuitBreaker("MySQL", plugin.getLogger(), plugin.config.getInt("mysql_circuit_breaker_failure_rate", 50), TimeUnit.SECONDS.toMillis(plugin.config.getLong("mysql_circuit_breaker_open_time", 30)));
+            slowCallNanos = TimeUnit.MILLISECONDS.toNanos(plugin.config.getLong("mysql_circuit_breaker_slow_call", 2000));
+        }
+        if (plugin.config.getBoolean("mysql_spool", true)) {
+            spool = new MailSpool(new File(plugin.getDataFolder(), "mysql_spool.log"), plugin.getLogger());
+            spoolReplayer = plugin.getProxy().getScheduler().schedule(plugin, this::replaySpool, 5, 5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Creates an index unless it already exists. MySQL has no CREATE INDEX IF NOT EXISTS.
+     */
+    private static void createIndex(Statement statement, String sql) throws SQLException {
+        try {
+            statement.execute(sql);
+        } catch (SQLException e) {
+            // 1061 = duplicate key name
+            if (e.getErrorCode() != 1061) {
+                throw e;
+            }
+        }
     }
 
     private void setupDataSource(BungeeMail plugin) {
@@ -35,12 +92,217 @@ public class MySQLBackend implements IStorageBackend {
         connectionPool.setTestOnBorrow(true);
         connectionPool.setTestOnCreate(true);
         poolableConnectionFactory.setPool(connectionPool);
-        this.dataSource = new PoolingDataSource<>(connectionPool);
+        this.poolingDataSource = new PoolingDataSource<>(connectionPool);
+        this.dataSource = poolingDataSource;
+    }
+
+    @Override
+    public void close() {
+        if (groupCommit != null) {
+            groupCommit.close();
+        }
+        if (replicas != null) {
+            replicaMonitor.cancel();
+            replicas.close();
+        }
+        if (spool != null) {
+            spoolReplayer.cancel();
+        }
+        try {
+            poolingDataSource.close();
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.WARNING, "Failed to close MySQL connection pool", e);
+        }
+    }
+
+    /**
+     * Borrows a connection from the pool, the time spent waiting for it is reported to the slow operation log. The
+     * outcome of the whole call, from borrowing the connection until it is closed, is reported to the circuit breaker.
+     */
+    private Connection getConnection() throws SQLException {
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            throw new SQLTransientConnectionException("MySQL is unavailable", "08000");
+        }
+        SlowOperationLog.phase("pool");
+        long start = System.nanoTime();
+        Connection connection;
+        try {
+            connection = dataSource.getConnection();
+        } catch (SQLException e) {
+            if (circuitBreaker != null) {
+                circuitBreaker.failure();
+            }
+            throw new SQLTransientConnectionException("Failed to connect to MySQL", "08001", e);
+        }
+        SlowOperationLog.phase("query");
+        if (circuitBreaker != null) {
+            // a database that accepts connections but doesn't answer queries is as good as unavailable
+            return CircuitBreakerConnection.wrap(connection, circuitBreaker, MySQLBackend::isUnavailable, start, slowCallNanos);
+        }
+        return connection;
+    }
+
+    /**
+     * @return true if the exception has been caused by the database being unreachable
+     */
+    private static boolean isUnavailable(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof SQLTransientConnectionException || e instanceof SQLNonTransientConnectionException
+                    || (e instanceof SQLException && ((SQLException) e).getSQLState() != null && ((SQLException) e).getSQLState().startsWith("08"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Saves mails to the spool after saving them to the database failed.
+     * <p>
+     * Spooled mails count towards the inbox counters right away, saving them from the spool invalidates the counters
+     * of their recipients. They are not added to the cached inboxes, as they have no id yet, so they are listed once
+     * they have been saved.
+     *
+     * @param cause the exception thrown while saving the mails to the database, thrown again if spooling fails
+     */
+    private void spool(String senderName, UUID senderUUID, Collection<UUID> recipients, String message, boolean read, long time, StorageException cause) throws StorageException {
+        try {
+            spool.append(senderName, senderUUID, recipients, message, read, time);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            throw cause;
+        }
+        for (UUID recipient : recipients) {
+            counters.added(recipient, read);
+        }
+    }
+
+    private void replaySpool() {
+        if (spool.isEmpty()) {
+            return;
+        }
+        int replayed = spool.replay(this, 500);
+        if (replayed > 0) {
+            plugin.getLogger().info("Saved " + replayed + " mails from the spool to MySQL");
+        }
+    }
+
+    /**
+     * Borrows a connection for reading data concerning the given players. Uses a replica if one is configured, up to
+     * date and the players haven't been written to recently, the primary otherwise.
+     */
+    private Connection getReadConnection(Collection<UUID> players) throws SQLException {
+        if (replicas != null) {
+            SlowOperationLog.phase("replica pool");
+            Connection connection = replicas.getConnection(players);
+            if (connection != null) {
+                SlowOperationLog.phase("replica query");
+                return connection;
+            }
+        }
+        return getConnection();
+    }
+
+    /**
+     * Remembers that data of a player has been changed, so it is read from the primary for a while.
+     */
+    private void written(UUID player) {
+        if (replicas != null) {
+            replicas.written(player);
+        }
+    }
+
+    private static SQLMessage readMessage(ResultSet rs) throws SQLException {
+        String senderName = rs.getString("senderName");
+        UUID senderUUID = UUID.fromString(rs.getString("senderUUID"));
+        UUID recipient = UUID.fromString(rs.getString("recipient"));
+        String message = rs.getString("message");
+        boolean read = rs.getBoolean("read");
+        long time = rs.getLong("time");
+        long id = rs.getLong("id");
+        return new SQLMessage(id, senderName, senderUUID, recipient, message, read, time);
+    }
+
+    /**
+     * @return the percentage of inbox reads served from the cache since the last call, 0 if the cache is disabled
+     */
+    int getAndResetInboxCacheHitRate() {
+        return inboxCache != null ? inboxCache.getAndResetHitRate() : 0;
+    }
+
+    @Override
+    public void loadInbox(UUID uuid) throws StorageException {
+        if (inboxCache != null) {
+            inboxCache.load(uuid, recipient -> queryMessages(recipient, false));
+        }
+    }
+
+    @Override
+    public void unloadInbox(UUID uuid) {
+        if (inboxCache != null) {
+            inboxCache.unload(uuid);
+        }
     }
 
     @Override
     public List<Message> getMessagesFor(UUID uuid, boolean onlyNew) throws StorageException {
-        try (Connection connection = dataSource.getConnection()){
+        if (inboxCache != null) {
+            List<Message> messages = inboxCache.get(uuid, onlyNew);
+            if (messages != null) {
+                return messages;
+            }
+            if (plugin.getProxy().getPlayer(uuid) != null) {
+                // expired or invalidated, load it again as long as the player is online
+                List<SQLMessage> mails = inboxCache.load(uuid, recipient -> queryMessages(recipient, false));
+                messages = new ArrayList<>(mails.size());
+                for (SQLMessage mail : mails) {
+                    if (!onlyNew || !mail.isRead()) {
+                        messages.add(mail);
+                    }
+                }
+                return messages;
+            }
+        }
+        return new ArrayList<>(queryMessages(uuid, onlyNew));
+    }
+
+    @Override
+    public List<Message> searchMessages(UUID recipient, Set<String> tokens) throws StorageException {
+        // words shorter than innodb_ft_min_token_size are not in the index and are ignored instead of scanning the inbox
+        StringBuilder query = new StringBuilder();
+        Set<String> indexed = new LinkedHashSet<>();
+        for (String token : tokens) {
+            if (token.length() >= SearchTokenizer.MIN_QUERY_TOKEN_LENGTH) {
+                query.append(" +").append(token);
+                indexed.add(token);
+            }
+        }
+        if (indexed.isEmpty()) {
+            return Collections.emptyList();
+        }
+        try (Connection connection = getConnection()){
+            try (PreparedStatement ps = connection.prepareStatement("select * from bungeemail_mails where recipient=? and match(message) against(? in boolean mode) order by `time` desc, id desc")) {
+                ps.setString(1, recipient.toString());
+                ps.setString(2, query.toString().trim());
+                try (ResultSet rs = ps.executeQuery()) {
+                    SlowOperationLog.phase("parse");
+                    List<Message> messages = new ArrayList<>();
+                    while (rs.next()) {
+                        SQLMessage message = readMessage(rs);
+                        if (SearchTokenizer.matches(message, indexed)) {
+                            messages.add(message);
+                        }
+                    }
+                    SlowOperationLog.rows(messages.size());
+                    return messages;
+                }
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    private List<SQLMessage> queryMessages(UUID uuid, boolean onlyNew) throws StorageException {
+        try (Connection connection = getReadConnection(Collections.singleton(uuid))){
             String sql;
             if (onlyNew) {
                 sql = "select * from bungeemail_mails where recipient=? and `read`='0'";
@@ -50,17 +312,12 @@ public class MySQLBackend implements IStorageBackend {
             try (PreparedStatement ps = connection.prepareStatement(sql)) {
                 ps.setString(1, uuid.toString());
                 try (ResultSet rs = ps.executeQuery()) {
-                    ArrayList<Message> messages = new ArrayList<>();
+                    SlowOperationLog.phase("parse");
+                    ArrayList<SQLMessage> messages = new ArrayList<>();
                     while (rs.next()) {
-                        String senderName = rs.getString("senderName");
-                        UUID senderUUID = UUID.fromString(rs.getString("senderUUID"));
-                        UUID recipient = UUID.fromString(rs.getString("recipient"));
-                        String message = rs.getString("message");
-                        boolean read = rs.getBoolean("read");
-                        long time = rs.getLong("time");
-                        long id = rs.getLong("id");
-                        messages.add(new SQLMessage(id, senderName, senderUUID, recipient, message, read, time));
+                        messages.add(readMessage(rs));
                     }
+                    SlowOperationLog.rows(messages.size());
                     return messages;
                 }
             }
@@ -69,9 +326,36 @@ public class MySQLBackend implements IStorageBackend {
         }
     }
 
+    /**
+     * If the database is unavailable the mail is spooled, the returned mail is {@link SQLMessage#isSpooled() spooled}
+     * then and can't be marked as read or deleted.
+     */
     @Override
     public Message saveMessage(String senderName, UUID senderUUID, UUID recipient, String message, boolean read, long time) throws StorageException {
-        try (Connection connection = dataSource.getConnection()){
+        try {
+            return insertMessage(senderName, senderUUID, recipient, message, read, time);
+        } catch (StorageException e) {
+            if (spool == null || !isUnavailable(e)) {
+                throw e;
+            }
+            spool(senderName, senderUUID, Collections.singleton(recipient), message, read, time, e);
+            // saved to the database by the spool replayer later
+            return new SQLMessage(SQLMessage.SPOOLED, senderName, senderUUID, recipient, message, read, time);
+        }
+    }
+
+    private SQLMessage insertMessage(String senderName, UUID senderUUID, UUID recipient, String message, boolean read, long time) throws StorageException {
+        if (groupCommit != null) {
+            SlowOperationLog.phase("groupCommit");
+            SQLMessage mail = groupCommit.insert(senderName, senderUUID, recipient, message, read, time);
+            written(recipient);
+            counters.added(recipient, read);
+            if (inboxCache != null) {
+                inboxCache.added(mail);
+            }
+            return mail;
+        }
+        try (Connection connection = getConnection()){
             try (PreparedStatement ps = connection.prepareStatement("insert into bungeemail_mails values(NULL, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS)) {
                 ps.setString(1, senderName);
                 ps.setString(2, senderUUID.toString());
@@ -83,8 +367,13 @@ public class MySQLBackend implements IStorageBackend {
                 if(affectedRows == 1) {
                     try (ResultSet rs = ps.getGeneratedKeys()) {
                         if(rs.next()){
-                            long id = rs.getLong(1);
-                            return new SQLMessage(id, senderName, senderUUID, recipient, message, read, time);
+                            SQLMessage mail = new SQLMessage(rs.getLong(1), senderName, senderUUID, recipient, message, read, time);
+                            written(recipient);
+                            counters.added(recipient, read);
+                            if (inboxCache != null) {
+                                inboxCache.added(mail);
+                            }
+                            return mail;
                         } else {
                             throw new StorageException("Saving mail failed. Generated key not available");
                         }
@@ -100,14 +389,71 @@ public class MySQLBackend implements IStorageBackend {
 
     @Override
     public int saveMessageToAll(String senderName, UUID senderUUID, String message, boolean read, long time) throws StorageException {
-        try (Connection connection = dataSource.getConnection()){
+        try (Connection connection = getConnection()){
             try (PreparedStatement ps = connection.prepareStatement("INSERT INTO bungeemail_mails (senderName, senderUUID, recipient, message, `read`, `time`) SELECT DISTINCT ?, ?, uuid, ?, ?, ? FROM bungeemail_uuids_v2")) {
                 ps.setString(1, senderName);
                 ps.setString(2, senderUUID.toString());
                 ps.setString(3, message);
                 ps.setBoolean(4, read);
                 ps.setLong(5, time);
-                return ps.executeUpdate();
+                int count = ps.executeUpdate();
+                if (replicas != null) {
+                    replicas.writtenAll();
+                }
+                counters.invalidateAll();
+                if (inboxCache != null) {
+                    inboxCache.invalidateAll();
+                }
+                return count;
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public int saveMessages(String senderName, UUID senderUUID, Collection<UUID> recipients, String message, boolean read, long time) throws StorageException {
+        if (recipients.isEmpty()) {
+            return 0;
+        }
+        try {
+            return insertMessages(senderName, senderUUID, recipients, message, read, time);
+        } catch (StorageException e) {
+            if (spool == null || !isUnavailable(e)) {
+                throw e;
+            }
+            spool(senderName, senderUUID, recipients, message, read, time, e);
+            return recipients.size();
+        }
+    }
+
+    private int insertMessages(String senderName, UUID senderUUID, Collection<UUID> recipients, String message, boolean read, long time) throws StorageException {
+        StringBuilder sql = new StringBuilder("insert into bungeemail_mails (senderName, senderUUID, recipient, message, `read`, `time`) values");
+        for (int i = 0; i < recipients.size(); i++) {
+            sql.append(i == 0 ? "(?, ?, ?, ?, ?, ?)" : ",(?, ?, ?, ?, ?, ?)");
+        }
+        try (Connection connection = getConnection()){
+            try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+                int index = 1;
+                for (UUID recipient : recipients) {
+                    ps.setString(index++, senderName);
+                    ps.setString(index++, senderUUID.toString());
+                    ps.setString(index++, recipient.toString());
+                    ps.setString(index++, message);
+                    ps.setBoolean(index++, read);
+                    ps.setLong(index++, time);
+                }
+                int count = ps.executeUpdate();
+                if (replicas != null) {
+                    replicas.written(recipients);
+                }
+                for (UUID recipient : recipients) {
+                    counters.added(recipient, read);
+                    if (inboxCache != null) {
+                        inboxCache.invalidate(recipient);
+                    }
+                }
+                return count;
             }
         } catch (SQLException e) {
             throw new StorageException(e);
@@ -117,13 +463,23 @@ public class MySQLBackend implements IStorageBackend {
     @Override
     public void markRead(Message message) throws StorageException {
         Preconditions.checkArgument(message instanceof SQLMessage);
-        try (Connection connection = dataSource.getConnection()){
+        if (((SQLMessage) message).isSpooled()) {
+            throw new StorageException("The mail has not been saved to MySQL yet");
+        }
+        try (Connection connection = getConnection()){
             try(PreparedStatement ps = connection.prepareStatement("update bungeemail_mails set `read`=1 where id=?")) {
                 ps.setLong(1, message.hashCode());
                 if(ps.executeUpdate() == 0){
                     throw new StorageException("Tried to read non-existent mail");
                 }
+                written(message.getRecipient());
+                if (!message.isRead()) {
+                    counters.markedRead(message.getRecipient());
+                }
                 ((SQLMessage) message).setRead(true);
+                if (inboxCache != null) {
+                    inboxCache.markedRead(message);
+                }
             }
         } catch (SQLException e) {
             throw new StorageException(e);
@@ -132,28 +488,42 @@ public class MySQLBackend implements IStorageBackend {
 
     @Override
     public void delete(Message message) throws StorageException {
-        delete(message.getId(), message.getRecipient());
+        Preconditions.checkArgument(message instanceof SQLMessage);
+        if (((SQLMessage) message).isSpooled()) {
+            throw new StorageException("The mail has not been saved to MySQL yet");
+        }
+        deleteRow(message.getId(), message.getRecipient());
+        counters.removed(message.getRecipient(), message.isRead(), 1);
     }
 
     @Override
     public boolean delete(long id, UUID recipient) throws StorageException {
-        try (Connection connection = dataSource.getConnection()){
+        deleteRow(id, recipient);
+        counters.invalidate(recipient);
+        return true;
+    }
+
+    private void deleteRow(long id, UUID recipient) throws StorageException {
+        try (Connection connection = getConnection()){
             try (PreparedStatement ps = connection.prepareStatement("delete from bungeemail_mails where id=? and recipient=?")) {
                 ps.setLong(1, id);
                 ps.setString(2, recipient.toString());
                 if(ps.executeUpdate() == 0){
                     throw new StorageException("Tried to delete non-existent mail");
                 }
+                written(recipient);
+                if (inboxCache != null) {
+                    inboxCache.removed(recipient, id);
+                }
             }
         } catch (SQLException e) {
             throw new StorageException(e);
         }
-        return true;
     }
 
     @Override
     public void deleteOlder(long time, boolean deleteUnread) throws StorageException {
-        try (Connection connection = dataSource.getConnection()){
+        try (Connection connection = getConnection()){
             String sql;
             if (deleteUnread) {
                 sql = "delete from bungeemail_mails where time < ?";
@@ -164,6 +534,118 @@ public class MySQLBackend implements IStorageBackend {
                 ps.setLong(1, time);
                 ps.executeUpdate();
             }
+            if (replicas != null) {
+                replicas.writtenAll();
+            }
+            counters.invalidateAll();
+            if (inboxCache != null) {
+                inboxCache.invalidateAll();
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public List<Message> getOlderRead(long time, int limit) throws StorageException {
+        try (Connection connection = getConnection()){
+            try (PreparedStatement ps = connection.prepareStatement("select * from bungeemail_mails where `time` < ? and `read`=1 order by id limit ?")) {
+                ps.setLong(1, time);
+                ps.setInt(2, limit);
+                try (ResultSet rs = ps.executeQuery()) {
+                    List<Message> messages = new ArrayList<>();
+                    while (rs.next()) {
+                        messages.add(readMessage(rs));
+                    }
+                    return messages;
+                }
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public void deleteMessages(List<? extends Message> messages) throws StorageException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        try (Connection connection = getConnection()){
+            try (PreparedStatement ps = connection.prepareStatement("delete from bungeemail_mails where id in (" + String.join(",", Collections.nCopies(messages.size(), "?")) + ")")) {
+                for (int i = 0; i < messages.size(); i++) {
+                    ps.setLong(i + 1, messages.get(i).getId());
+                }
+                ps.executeUpdate();
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+        for (Message message : messages) {
+            written(message.getRecipient());
+            counters.invalidate(message.getRecipient());
+            if (inboxCache != null) {
+                inboxCache.removed(message.getRecipient(), message.getId());
+            }
+        }
+    }
+
+    @Override
+    public int countMessages(UUID recipient, boolean onlyNew) throws StorageException {
+        return counters.get(recipient, onlyNew, this::loadCounts);
+    }
+
+    @Override
+    public Map<UUID, Integer> countMessages(Collection<UUID> recipients, boolean onlyNew) throws StorageException {
+        return counters.getAll(recipients, onlyNew, this::loadCounts);
+    }
+
+    private Map<UUID, int[]> loadCounts(List<UUID> recipients) throws StorageException {
+        try (Connection connection = getReadConnection(recipients)){
+            try (PreparedStatement ps = connection.prepareStatement("select recipient, count(*), coalesce(sum(`read`=0), 0) from bungeemail_mails where recipient in (" + String.join(",", Collections.nCopies(recipients.size(), "?")) + ") group by recipient")) {
+                for (int i = 0; i < recipients.size(); i++) {
+                    ps.setString(i + 1, recipients.get(i).toString());
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    Map<UUID, int[]> counts = new HashMap<>();
+                    while (rs.next()) {
+                        counts.put(UUID.fromString(rs.getString(1)), new int[]{rs.getInt(2), rs.getInt(3)});
+                    }
+                    return counts;
+                }
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    private int[] loadCounts(UUID recipient) throws StorageException {
+        try (Connection connection = getReadConnection(Collections.singleton(recipient))){
+            try (PreparedStatement ps = connection.prepareStatement("select count(*), coalesce(sum(`read`=0), 0) from bungeemail_mails where recipient=?")) {
+                ps.setString(1, recipient.toString());
+                try (ResultSet rs = ps.executeQuery()) {
+                    rs.next();
+                    return new int[]{rs.getInt(1), rs.getInt(2)};
+                }
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public int deleteOldestRead(UUID recipient, int count) throws StorageException {
+        try (Connection connection = getConnection()){
+            try (PreparedStatement ps = connection.prepareStatement("delete from bungeemail_mails where recipient=? and `read`=1 order by `time`, id limit ?")) {
+                ps.setString(1, recipient.toString());
+                ps.setInt(2, count);
+                int deleted = ps.executeUpdate();
+                written(recipient);
+                counters.removed(recipient, true, deleted);
+                if (inboxCache != null) {
+                    inboxCache.invalidate(recipient);
+                }
+                return deleted;
+            }
         } catch (SQLException e) {
             throw new StorageException(e);
         }
@@ -174,7 +656,7 @@ public class MySQLBackend implements IStorageBackend {
         if ("Console".equals(name)) {
             return BungeeMail.CONSOLE_UUID;
         }
-        try (Connection connection = dataSource.getConnection()){
+        try (Connection connection = getConnection()){
             try (PreparedStatement ps = connection.prepareStatement("select uuid from bungeemail_uuids_v2 where username=?")) {
                 ps.setString(1, name);
                 try (ResultSet rs = ps.executeQuery()) {
@@ -189,9 +671,95 @@ public class MySQLBackend implements IStorageBackend {
         }
     }
 
+    @Override
+    public Map<String, UUID> getUUIDsForNames(Collection<String> names) throws StorageException {
+        Map<String, UUID> result = new HashMap<>();
+        // the name as passed in for each name returned by the database, which may differ in case
+        Map<String, String> requested = new TreeMap<>(CaseInsensitiveComparator.INSTANCE);
+        for (String name : names) {
+            if ("Console".equals(name)) {
+                result.put(name, BungeeMail.CONSOLE_UUID);
+            } else {
+                requested.put(name, name);
+            }
+        }
+        try (Connection connection = getConnection()){
+            for (List<String> batch : Lists.partition(new ArrayList<>(requested.keySet()), NAME_LOOKUP_BATCH_SIZE)) {
+                try (PreparedStatement ps = connection.prepareStatement("select username, uuid from bungeemail_uuids_v2 where username in (" + String.join(",", Collections.nCopies(batch.size(), "?")) + ")")) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        ps.setString(i + 1, batch.get(i));
+                    }
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            String name = requested.get(rs.getString("username"));
+                            if (name != null) {
+                                result.put(name, UUID.fromString(rs.getString("uuid")));
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+        return result;
+    }
+
+    @Override
+    public String getNameForUUID(UUID uuid) throws StorageException {
+        if (BungeeMail.CONSOLE_UUID.equals(uuid)) {
+            return "Console";
+        }
+        try (Connection connection = getConnection()){
+            try (PreparedStatement ps = connection.prepareStatement("select username from bungeemail_uuids_v2 where uuid=? limit 1")) {
+                ps.setString(1, uuid.toString());
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getString("username") : null;
+                }
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public List<Message> getSentMessages(UUID sender, int offset, int limit) throws StorageException {
+        try (Connection connection = getConnection()){
+            try (PreparedStatement ps = connection.prepareStatement("select * from bungeemail_mails where senderUUID=? order by `time` desc, id desc limit ? offset ?")) {
+                ps.setString(1, sender.toString());
+                ps.setInt(2, limit);
+                ps.setInt(3, offset);
+                try (ResultSet rs = ps.executeQuery()) {
+                    List<Message> messages = new ArrayList<>();
+                    while (rs.next()) {
+                        messages.add(readMessage(rs));
+                    }
+                    return messages;
+                }
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public int countSentMessages(UUID sender) throws StorageException {
+        try (Connection connection = getConnection()){
+            try (PreparedStatement ps = connection.prepareStatement("select count(*) from bungeemail_mails where senderUUID=?")) {
+                ps.setString(1, sender.toString());
+                try (ResultSet rs = ps.executeQuery()) {
+                    rs.next();
+                    return rs.getInt(1);
+                }
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
     @Override
     public Collection<UUID> getAllKnownUUIDs() throws StorageException {
-        try (Connection connection = dataSource.getConnection()){
+        try (Connection connection = getConnection()){
             try(Statement statement = connection.createStatement()) {
                 try (ResultSet rs = statement.executeQuery("select distinct uuid from bungeemail_uuids_v2")) {
                     Collection<UUID> uuids = new ArrayList<>();
@@ -208,7 +776,7 @@ public class MySQLBackend implements IStorageBackend {
 
     @Override
     public Collection<String> getKnownUsernames() throws StorageException {
-        try (Connection connection = dataSource.getConnection()){
+        try (Connection connection = getReadConnection(Collections.emptyList())){
             try(Statement statement = connection.createStatement()) {
                 try (ResultSet rs = statement.executeQuery("select distinct username from bungeemail_uuids_v2")) {
                     Collection<String> names = new ArrayList<>();
@@ -225,7 +793,7 @@ public class MySQLBackend implements IStorageBackend {
 
     @Override
     public void updateUserEntry(final UUID uuid, final String username) throws StorageException {
-        try (Connection connection = dataSource.getConnection()){
+        try (Connection connection = getConnection()){
             try(PreparedStatement ps = connection.prepareStatement("insert into bungeemail_uuids_v2 (username, uuid) values(?, ?) ON DUPLICATE KEY UPDATE uuid=VALUES(uuid)")){
                 ps.setString(1, username);
                 ps.setString(2, uuid.toString());
@@ -236,12 +804,124 @@ public class MySQLBackend implements IStorageBackend {
         }
     }
 
+    @Override
+    public ExportBatch<Message> exportMessages(String checkpoint, int limit) throws StorageException {
+        long lastId = checkpoint == null ? 0 : Long.parseLong(checkpoint);
+        try (Connection connection = getConnection()) {
+            try (PreparedStatement ps = connection.prepareStatement("select * from bungeemail_mails where id > ? order by id limit ?")) {
+                ps.setLong(1, lastId);
+                ps.setInt(2, limit);
+                try (ResultSet rs = ps.executeQuery()) {
+                    List<Message> messages = new ArrayList<>();
+                    while (rs.next()) {
+                        SQLMessage message = readMessage(rs);
+                        messages.add(message);
+                        lastId = message.getId();
+                    }
+                    return new ExportBatch<>(messages, Long.toString(lastId));
+                }
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public int saveMessages(List<? extends Message> messages) throws StorageException {
+        if (messages.isEmpty()) {
+            return 0;
+        }
+        try (Connection connection = getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement ps = connection.prepareStatement("insert into bungeemail_mails (senderName, senderUUID, recipient, message, `read`, `time`) values(?, ?, ?, ?, ?, ?)")) {
+                for (Message message : messages) {
+                    ps.setString(1, message.getSenderName());
+                    ps.setString(2, message.getSenderUUID().toString());
+                    ps.setString(3, message.getRecipient().toString());
+                    ps.setString(4, message.getMessage());
+                    ps.setBoolean(5, message.isRead());
+                    ps.setLong(6, message.getTime());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                connection.commit();
+                for (Message message : messages) {
+                    written(message.getRecipient());
+                    counters.invalidate(message.getRecipient());
+                    if (inboxCache != null) {
+                        inboxCache.invalidate(message.getRecipient());
+                    }
+                }
+                return messages.size();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public ExportBatch<Map.Entry<String, UUID>> exportUserEntries(String checkpoint, int limit) throws StorageException {
+        String lastName = checkpoint == null ? "" : checkpoint;
+        try (Connection connection = getConnection()) {
+            try (PreparedStatement ps = connection.prepareStatement("select username, uuid from bungeemail_uuids_v2 where username > ? order by username limit ?")) {
+                ps.setString(1, lastName);
+                ps.setInt(2, limit);
+                try (ResultSet rs = ps.executeQuery()) {
+                    List<Map.Entry<String, UUID>> entries = new ArrayList<>();
+                    while (rs.next()) {
+                        lastName = rs.getString("username");
+                        entries.add(new AbstractMap.SimpleImmutableEntry<>(lastName, UUID.fromString(rs.getString("uuid"))));
+                    }
+                    return new ExportBatch<>(entries, lastName);
+                }
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public void updateUserEntries(Map<String, UUID> entries) throws StorageException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        try (Connection connection = getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement ps = connection.prepareStatement("insert into bungeemail_uuids_v2 (username, uuid) values(?, ?) ON DUPLICATE KEY UPDATE uuid=VALUES(uuid)")) {
+                for (Map.Entry<String, UUID> entry : entries.entrySet()) {
+                    ps.setString(1, entry.getKey());
+                    ps.setString(2, entry.getValue().toString());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
     public static class SQLMessage implements Message {
+        /**
+         * Id of a mail that has not been saved to the database yet.
+         */
+        static final long SPOOLED = 0;
+
         private final String senderName;
         private final UUID senderUUID;
         private final UUID recipient;
         private final String message;
-        private boolean read;
+        private volatile boolean read;
         private final long time;
         private final long id;
 
@@ -290,7 +970,14 @@ public class MySQLBackend implements IStorageBackend {
             return id;
         }
 
-        private void setRead(boolean read) {
+        /**
+         * @return true if the mail has been saved to the spool and not to the database yet
+         */
+        boolean isSpooled() {
+            return id == SPOOLED;
+        }
+
+        void setRead(boolean read) {
             this.read = read;
         }
 
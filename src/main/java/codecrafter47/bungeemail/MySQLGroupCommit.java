@@ -0,0 +1,180 @@
+package codecrafter47.bungeemail;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces concurrent inserts of single mails. A background thread collects inserts for up to maxDelay
+ * milliseconds or until maxBatchSize inserts are waiting and writes them using a single transaction, so many
+ * concurrent senders share one commit.
+ * <p>
+ * Connections are taken from a {@link ConnectionSource}, so the groups go through the circuit breaker of the backend
+ * like all other queries.
+ */
+class MySQLGroupCommit {
+    private final ConnectionSource connectionSource;
+    private final Logger logger;
+    private final long maxDelayNanos;
+    private final int maxBatchSize;
+    private final BlockingQueue<PendingInsert> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    MySQLGroupCommit(ConnectionSource connectionSource, Logger logger, long maxDelayMillis, int maxBatchSize) {
+        this.connectionSource = connectionSource;
+        this.logger = logger;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.thread = new Thread(this::run, "BungeeMail Group Commit");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Inserts a mail and waits until the group it has been added to has been committed.
+     */
+    MySQLBackend.SQLMessage insert(String senderName, UUID senderUUID, UUID recipient, String message, boolean read, long time) throws StorageException {
+        PendingInsert insert = new PendingInsert(new MySQLBackend.SQLMessage(0, senderName, senderUUID, recipient, message, read, time));
+        if (!running) {
+            throw new StorageException("Storage has been closed");
+        }
+        queue.add(insert);
+        if (!running && queue.remove(insert)) {
+            // closed concurrently, the queue may already have been drained
+            insert.result.completeExceptionally(new StorageException("Storage has been closed"));
+        }
+        try {
+            return insert.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof StorageException) {
+                throw (StorageException) e.getCause();
+            }
+            throw new StorageException(e.getCause());
+        }
+    }
+
+    /**
+     * Writes all pending inserts and stops the background thread.
+     */
+    void close() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        PendingInsert insert;
+        while ((insert = queue.poll()) != null) {
+            insert.result.completeExceptionally(new StorageException("Storage has been closed"));
+        }
+    }
+
+    private void run() {
+        List<PendingInsert> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingInsert first = running ? queue.take() : queue.poll();
+                if (first == null) {
+                    break;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingInsert next = remaining > 0 && running ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException ignored) {
+                // closing, write whatever is left
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingInsert> batch) {
+        try {
+            List<MySQLBackend.SQLMessage> saved = insertAll(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(saved.get(i));
+            }
+        } catch (SQLException | StorageException e) {
+            if (batch.size() == 1 || e instanceof SQLTransientConnectionException) {
+                // inserting one by one won't help without a connection
+                for (PendingInsert insert : batch) {
+                    insert.result.completeExceptionally(e instanceof StorageException ? e : new StorageException(e));
+                }
+                return;
+            }
+            // don't let a single bad mail fail everyone in the group
+            logger.log(Level.FINE, "Group commit failed, inserting mails one by one", e);
+            for (PendingInsert insert : batch) {
+                flush(Collections.singletonList(insert));
+            }
+        }
+    }
+
+    private List<MySQLBackend.SQLMessage> insertAll(List<PendingInsert> batch) throws SQLException, StorageException {
+        try (Connection connection = connectionSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement ps = connection.prepareStatement("insert into bungeemail_mails values(NULL, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS)) {
+                for (PendingInsert insert : batch) {
+                    Message message = insert.message;
+                    ps.setString(1, message.getSenderName());
+                    ps.setString(2, message.getSenderUUID().toString());
+                    ps.setString(3, message.getRecipient().toString());
+                    ps.setString(4, message.getMessage());
+                    ps.setBoolean(5, message.isRead());
+                    ps.setLong(6, message.getTime());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                List<MySQLBackend.SQLMessage> saved = new ArrayList<>(batch.size());
+                try (ResultSet rs = ps.getGeneratedKeys()) {
+                    for (PendingInsert insert : batch) {
+                        if (!rs.next()) {
+                            throw new StorageException("Saving mail failed. Generated key not available");
+                        }
+                        Message message = insert.message;
+                        saved.add(new MySQLBackend.SQLMessage(rs.getLong(1), message.getSenderName(), message.getSenderUUID(), message.getRecipient(), message.getMessage(), message.isRead(), message.getTime()));
+                    }
+                }
+                connection.commit();
+                return saved;
+            } catch (SQLException | StorageException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static class PendingInsert {
+        private final Message message;
+        private final CompletableFuture<MySQLBackend.SQLMessage> result = new CompletableFuture<>();
+
+        private PendingInsert(Message message) {
+            this.message = message;
+        }
+    }
+
+    interface ConnectionSource {
+        Connection getConnection() throws SQLException;
+    }
+}
@@ -0,0 +1,175 @@
+package codecrafter47.bungeemail;
+
+import java.lang.ref.SoftReference;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the inboxes of online players in memory when using MySQL. Inboxes are loaded when a player joins and
+ * updated by the backend on every write (write-through), so read commands don't need to query the database.
+ * Entries are held by soft references, so the garbage collector may drop them under memory pressure. As other
+ * proxies may write to the same database entries expire after a configurable time.
+ */
+class MySQLInboxCache {
+
+    private final long expireAfter;
+
+    private final Map<UUID, SoftReference<CachedInbox>> inboxes = new HashMap<>();
+    // recipients whose inbox is being loaded, set to true if the inbox changed while loading
+    private final Map<UUID, boolean[]> loading = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    interface Loader {
+        List<MySQLBackend.SQLMessage> load(UUID recipient) throws StorageException;
+    }
+
+    MySQLInboxCache(long expireAfter) {
+        this.expireAfter = expireAfter;
+    }
+
+    /**
+     * Loads the inbox of a player into the cache.
+     *
+     * @return the loaded mails
+     */
+    List<MySQLBackend.SQLMessage> load(UUID recipient, Loader loader) throws StorageException {
+        boolean[] changed = new boolean[1];
+        synchronized (this) {
+            loading.put(recipient, changed);
+        }
+        List<MySQLBackend.SQLMessage> mails;
+        try {
+            mails = loader.load(recipient);
+        } catch (StorageException e) {
+            synchronized (this) {
+                loading.remove(recipient, changed);
+            }
+            throw e;
+        }
+        synchronized (this) {
+            // if the inbox has been modified while loading we may have missed that change
+            if (loading.remove(recipient, changed) && !changed[0]) {
+                inboxes.put(recipient, new SoftReference<>(new CachedInbox(new ArrayList<>(mails))));
+            }
+        }
+        return mails;
+    }
+
+    /**
+     * Removes the inbox of a player from the cache, e.g. when the player disconnects.
+     */
+    synchronized void unload(UUID recipient) {
+        inboxes.remove(recipient);
+        loading.remove(recipient);
+    }
+
+    /**
+     * Get the mails of a player from the cache.
+     *
+     * @return the mails or null if the inbox is not cached
+     */
+    synchronized List<Message> get(UUID recipient, boolean onlyNew) {
+        CachedInbox inbox = getInbox(recipient);
+        if (inbox == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        List<Message> mails = new ArrayList<>(inbox.mails.size());
+        for (MySQLBackend.SQLMessage mail : inbox.mails) {
+            if (!onlyNew || !mail.isRead()) {
+                mails.add(mail);
+            }
+        }
+        return mails;
+    }
+
+    synchronized void added(MySQLBackend.SQLMessage mail) {
+        CachedInbox inbox = modify(mail.getRecipient());
+        if (inbox != null) {
+            inbox.mails.add(mail);
+        }
+    }
+
+    synchronized void markedRead(Message message) {
+        CachedInbox inbox = modify(message.getRecipient());
+        if (inbox != null) {
+            for (MySQLBackend.SQLMessage mail : inbox.mails) {
+                if (mail.getId() == message.getId()) {
+                    mail.setRead(true);
+                }
+            }
+        }
+    }
+
+    synchronized void removed(UUID recipient, long id) {
+        removeIf(recipient, mail -> mail.getId() == id);
+    }
+
+    synchronized void removeIf(UUID recipient, Predicate<MySQLBackend.SQLMessage> filter) {
+        CachedInbox inbox = modify(recipient);
+        if (inbox != null) {
+            inbox.mails.removeIf(filter);
+        }
+    }
+
+    synchronized void invalidate(UUID recipient) {
+        inboxes.remove(recipient);
+        markChanged(recipient);
+    }
+
+    /**
+     * Drops all cached inboxes. Used after bulk operations, inboxes are loaded again on the next read.
+     */
+    synchronized void invalidateAll() {
+        inboxes.clear();
+        for (boolean[] changed : loading.values()) {
+            changed[0] = true;
+        }
+    }
+
+    /**
+     * @return the percentage of reads served from the cache since the last call
+     */
+    int getAndResetHitRate() {
+        long hits = this.hits.getAndSet(0);
+        long misses = this.misses.getAndSet(0);
+        return hits + misses == 0 ? 0 : (int) (100 * hits / (hits + misses));
+    }
+
+    private CachedInbox getInbox(UUID recipient) {
+        SoftReference<CachedInbox> reference = inboxes.get(recipient);
+        CachedInbox inbox = reference != null ? reference.get() : null;
+        if (inbox == null || System.currentTimeMillis() - inbox.loaded > expireAfter) {
+            if (reference != null) {
+                inboxes.remove(recipient);
+            }
+            return null;
+        }
+        return inbox;
+    }
+
+    private CachedInbox modify(UUID recipient) {
+        markChanged(recipient);
+        return getInbox(recipient);
+    }
+
+    private void markChanged(UUID recipient) {
+        boolean[] changed = loading.get(recipient);
+        if (changed != null) {
+            changed[0] = true;
+        }
+    }
+
+    private static class CachedInbox {
+        private final List<MySQLBackend.SQLMessage> mails;
+        private final long loaded = System.currentTimeMillis();
+
+        private CachedInbox(List<MySQLBackend.SQLMessage> mails) {
+            this.mails = mails;
+        }
+    }
+}
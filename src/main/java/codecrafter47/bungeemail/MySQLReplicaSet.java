@@ -0,0 +1,191 @@
+package codecrafter47.bungeemail;
+
+import org.apache.commons.dbcp2.ConnectionFactory;
+import org.apache.commons.dbcp2.DriverManagerConnectionFactory;
+import org.apache.commons.dbcp2.PoolableConnection;
+import org.apache.commons.dbcp2.PoolableConnectionFactory;
+import org.apache.commons.dbcp2.PoolingDataSource;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read replicas of the MySQL database, each with its own connection pool.
+ * <p>
+ * Replicas are only used while their replication lag is at most mysql_replica_max_lag seconds, the lag is checked
+ * periodically by {@link #checkLag()}. To make sure players always see their own changes, reads concerning a player
+ * go to the primary for mysql_read_your_writes_window seconds after a write concerning that player.
+ */
+class MySQLReplicaSet {
+    private static final long UNKNOWN = Long.MAX_VALUE;
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final long maxLag;
+    private final long window;
+    private final Logger logger;
+    private final ConcurrentMap<UUID, Long> lastWrite = new ConcurrentHashMap<>();
+    // time of the last write concerning all players, e.g. /mail sendall
+    private volatile long lastGlobalWrite = 0;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param hosts         the replicas as hostname:port
+     * @param maxLagSeconds maximum replication lag of a replica that is used
+     * @param windowSeconds time after a write during which reads concerning the same player go to the primary
+     */
+    MySQLReplicaSet(List<String> hosts, String database, String username, String password, long maxLagSeconds, long windowSeconds, Logger logger) {
+        this.maxLag = maxLagSeconds;
+        // a replica may be up to maxLag behind, the window needs to cover that
+        this.window = TimeUnit.SECONDS.toMillis(Math.max(windowSeconds, maxLagSeconds + 1));
+        this.logger = logger;
+        for (String host : hosts) {
+            ConnectionFactory connectionFactory = new DriverManagerConnectionFactory("jdbc:mysql://" + host + "/" + database, username, password);
+            PoolableConnectionFactory poolableConnectionFactory = new PoolableConnectionFactory(connectionFactory, null);
+            GenericObjectPool<PoolableConnection> connectionPool = new GenericObjectPool<>(poolableConnectionFactory);
+            connectionPool.setTestOnBorrow(true);
+            connectionPool.setTestOnCreate(true);
+            poolableConnectionFactory.setPool(connectionPool);
+            replicas.add(new Replica(host, new PoolingDataSource<>(connectionPool)));
+        }
+    }
+
+    void written(UUID player) {
+        lastWrite.put(player, System.currentTimeMillis());
+    }
+
+    void written(Collection<UUID> players) {
+        long now = System.currentTimeMillis();
+        for (UUID player : players) {
+            lastWrite.put(player, now);
+        }
+    }
+
+    void writtenAll() {
+        lastGlobalWrite = System.currentTimeMillis();
+    }
+
+    /**
+     * Get a connection to a replica for reading data concerning the given players.
+     *
+     * @param players the players, empty if the data doesn't belong to any player
+     * @return the connection or null if the primary should be used instead
+     */
+    Connection getConnection(Collection<UUID> players) {
+        long now = System.currentTimeMillis();
+        if (now - lastGlobalWrite < window) {
+            return null;
+        }
+        for (UUID player : players) {
+            Long time = lastWrite.get(player);
+            if (time != null && now - time < window) {
+                return null;
+            }
+        }
+        int start = next.getAndIncrement();
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get(Math.floorMod(start + i, replicas.size()));
+            if (replica.lag > maxLag) {
+                continue;
+            }
+            try {
+                return replica.dataSource.getConnection();
+            } catch (SQLException e) {
+                logger.log(Level.WARNING, "Failed to connect to MySQL replica " + replica.host + ", using the primary until its lag has been checked again", e);
+                replica.lag = UNKNOWN;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Updates the replication lag of all replicas and forgets writes that are older than the window. Runs
+     * periodically.
+     */
+    void checkLag() {
+        for (Replica replica : replicas) {
+            long lag;
+            try (Connection connection = replica.dataSource.getConnection()) {
+                lag = queryLag(connection);
+            } catch (SQLException e) {
+                lag = UNKNOWN;
+                if (replica.lag != UNKNOWN) {
+                    logger.log(Level.WARNING, "Failed to check the replication lag of MySQL replica " + replica.host + ", using the primary instead", e);
+                }
+            }
+            if (lag > maxLag && replica.lag <= maxLag) {
+                logger.warning("MySQL replica " + replica.host + " is " + (lag == UNKNOWN ? "not replicating" : lag + "s behind") + ", using the primary instead");
+            } else if (lag <= maxLag && replica.lag > maxLag && replica.checked) {
+                logger.info("MySQL replica " + replica.host + " caught up, using it again");
+            }
+            replica.lag = lag;
+            replica.checked = true;
+        }
+        long now = System.currentTimeMillis();
+        lastWrite.values().removeIf(time -> now - time >= window);
+    }
+
+    /**
+     * @return the replication lag in seconds, {@link #UNKNOWN} if replication is stopped or broken
+     */
+    private static long queryLag(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            ResultSet rs;
+            try {
+                rs = statement.executeQuery("SHOW REPLICA STATUS");
+            } catch (SQLException e) {
+                // MySQL before 8.0.22 and MariaDB before 10.5.1
+                rs = statement.executeQuery("SHOW SLAVE STATUS");
+            }
+            try {
+                if (!rs.next()) {
+                    // doesn't replicate from anywhere, e.g. a node of a synchronous cluster
+                    return 0;
+                }
+                String lag;
+                try {
+                    lag = rs.getString("Seconds_Behind_Source");
+                } catch (SQLException e) {
+                    lag = rs.getString("Seconds_Behind_Master");
+                }
+                return lag == null ? UNKNOWN : Long.parseLong(lag);
+            } finally {
+                rs.close();
+            }
+        }
+    }
+
+    void close() {
+        for (Replica replica : replicas) {
+            try {
+                replica.dataSource.close();
+            } catch (SQLException e) {
+                logger.log(Level.WARNING, "Failed to close connection pool of MySQL replica " + replica.host, e);
+            }
+        }
+    }
+
+    private static class Replica {
+        private final String host;
+        private final PoolingDataSource<PoolableConnection> dataSource;
+        private volatile long lag = UNKNOWN;
+        private volatile boolean checked = false;
+
+        private Replica(String host, PoolingDataSource<PoolableConnection> dataSource) {
+            this.host = host;
+            this.dataSource = dataSource;
+        }
+    }
+}
@@ -4,5 +4,7 @@ public class Permissions {
     public static final String COMMAND = "bungeemail.use";
     public static final String COMMAND_SEND = "bungeemail.send";
     public static final String COMMAND_SENDALL = "bungeemail.sendall";
+    public static final String COMMAND_MULTICAST = "bungeemail.multicast";
     public static final String COMMAND_ADMIN = "bungeemail.admin";
+    public static final String BYPASS_RATE_LIMIT = "bungeemail.ratelimit.bypass";
 }
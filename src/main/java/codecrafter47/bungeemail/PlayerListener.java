@@ -1,28 +1,37 @@
 package codecrafter47.bungeemail;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import net.md_5.bungee.api.ProxyServer;
 import net.md_5.bungee.api.connection.Connection;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.event.LoginEvent;
+import net.md_5.bungee.api.event.PlayerDisconnectEvent;
 import net.md_5.bungee.api.event.PostLoginEvent;
 import net.md_5.bungee.api.event.ServerSwitchEvent;
 import net.md_5.bungee.api.event.TabCompleteEvent;
 import net.md_5.bungee.api.plugin.Listener;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
 import net.md_5.bungee.event.EventHandler;
 import net.md_5.bungee.event.EventPriority;
 
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 public class PlayerListener implements Listener {
 
     private final BungeeMail plugin;
     private final TabCompleteCache tabCompleteCache;
+    private final ServerSwitchNotifier switchNotifier;
+    // number of new mails, fetched during login
+    private final Cache<UUID, Integer> newMails = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build();
 
-    public PlayerListener(BungeeMail plugin, TabCompleteCache tabCompleteCache) {
+    public PlayerListener(BungeeMail plugin, TabCompleteCache tabCompleteCache, ServerSwitchNotifier switchNotifier) {
         this.plugin = plugin;
         this.tabCompleteCache = tabCompleteCache;
+        this.switchNotifier = switchNotifier;
     }
 
     @EventHandler(priority = EventPriority.HIGHEST)
@@ -30,13 +39,37 @@ public class PlayerListener implements Listener {
         if (!event.isCancelled()) {
             final UUID uniqueId = event.getConnection().getUniqueId();
             final String name = event.getConnection().getName();
-            ProxyServer.getInstance().getScheduler().runAsync(plugin, () -> {
-                try {
-                    plugin.getStorage().updateUserEntry(uniqueId, name);
-                } catch (StorageException e) {
-                    plugin.getLogger().log(Level.SEVERE, "Unable to update a players uuid in the cache", e);
+            // delay the login until the inbox has been loaded, but never longer than login_prefetch_timeout
+            event.registerIntent(plugin);
+            AtomicBoolean completed = new AtomicBoolean(false);
+            Runnable complete = () -> {
+                if (completed.compareAndSet(false, true)) {
+                    event.completeIntent(plugin);
                 }
-            });
+            };
+            ScheduledTask timeout = ProxyServer.getInstance().getScheduler().schedule(plugin, complete, plugin.config.getLong("login_prefetch_timeout", 1000), TimeUnit.MILLISECONDS);
+            // during startup this waits for the storage to be loaded
+            plugin.whenStorageReady(() -> ProxyServer.getInstance().getScheduler().runAsync(plugin, () -> {
+                try (SlowOperationLog.Trace ignored = plugin.slowOperationLog.start("login prefetch", name)) {
+                    SlowOperationLog.phase("updateUserEntry");
+                    try {
+                        plugin.getStorage().updateUserEntry(uniqueId, name);
+                    } catch (StorageException e) {
+                        plugin.getLogger().log(Level.SEVERE, "Unable to update a players uuid in the cache", e);
+                    }
+                    try {
+                        SlowOperationLog.phase("loadInbox");
+                        plugin.getStorage().loadInbox(uniqueId);
+                        SlowOperationLog.phase("countMessages");
+                        newMails.put(uniqueId, plugin.getStorage().countMessages(uniqueId, true));
+                    } catch (StorageException e) {
+                        plugin.getLogger().log(Level.WARNING, "Unable to load mails of " + name, e);
+                    }
+                } finally {
+                    timeout.cancel();
+                    complete.run();
+                }
+            }));
         }
     }
 
@@ -48,26 +81,70 @@ public class PlayerListener implements Listener {
         }
     }
 
+    @EventHandler
+    public void onPlayerDisconnect(PlayerDisconnectEvent event) {
+        try (SlowOperationLog.Trace ignored = plugin.slowOperationLog.start("disconnect", event.getPlayer().getName())) {
+            if (plugin.isStorageReady()) {
+                plugin.getStorage().unloadInbox(event.getPlayer().getUniqueId());
+            }
+            newMails.invalidate(event.getPlayer().getUniqueId());
+            switchNotifier.disconnected(event.getPlayer().getUniqueId());
+        }
+    }
+
     @EventHandler
     public void onPlayerServerSwitch(ServerSwitchEvent event) {
         final ProxiedPlayer player = event.getPlayer();
-        if (plugin.config.getBoolean("showMailsOnServerSwitch")) {
-            showNewMailInfo(player);
+        if (plugin.config.getBoolean("showMailsOnServerSwitch") && !showPrefetchedMailInfo(player)) {
+            switchNotifier.switched(player);
         }
     }
 
     private void showNewMailInfo(final ProxiedPlayer player) {
-        plugin.getProxy().getScheduler().schedule(plugin, () -> {
+        if (showPrefetchedMailInfo(player)) {
+            return;
+        }
+        plugin.whenStorageReady(() -> plugin.getProxy().getScheduler().schedule(plugin, () -> {
+            if (!player.isConnected()) {
+                return;
+            }
             if (plugin.config.getBoolean("showMailsOnLogin")) {
-                try {
-                    plugin.listMessages(player, 1, false, false);
-                } catch (StorageException e) {
-                    plugin.getLogger().log(Level.SEVERE, "Failed to show mails to player", e);
-                }
+                listNewMails(player);
             } else {
                 plugin.showLoginInfo(player);
             }
-        }, 1, TimeUnit.SECONDS);
+        }, 1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Shows the new mail notification using the number of new mails fetched during login.
+     *
+     * @return false if the number of new mails has not been fetched
+     */
+    private boolean showPrefetchedMailInfo(final ProxiedPlayer player) {
+        Integer prefetched = newMails.getIfPresent(player.getUniqueId());
+        if (prefetched == null) {
+            return false;
+        }
+        newMails.invalidate(player.getUniqueId());
+        switchNotifier.shown(player.getUniqueId(), prefetched);
+        if (prefetched > 0) {
+            if (plugin.config.getBoolean("showMailsOnLogin")) {
+                // the inbox has been loaded during login, so this doesn't need to wait
+                plugin.getProxy().getScheduler().runAsync(plugin, () -> listNewMails(player));
+            } else {
+                plugin.showLoginInfo(player, prefetched);
+            }
+        }
+        return true;
+    }
+
+    private void listNewMails(ProxiedPlayer player) {
+        try (SlowOperationLog.Trace ignored = plugin.slowOperationLog.start("login mail list", player.getName())) {
+            plugin.listMessages(player, 1, false, false);
+        } catch (StorageException e) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to show mails to player", e);
+        }
     }
 
     @EventHandler
@@ -95,6 +172,12 @@ public class PlayerListener implements Listener {
                     if ("listall".startsWith(prefix)) {
                         event.getSuggestions().add("listall");
                     }
+                    if ("search".startsWith(prefix)) {
+                        event.getSuggestions().add("search");
+                    }
+                    if ("sent".startsWith(prefix)) {
+                        event.getSuggestions().add("sent");
+                    }
                     if (player.hasPermission(Permissions.COMMAND_SEND) && "send".startsWith(prefix)) {
                         event.getSuggestions().add("send");
                     }
@@ -110,6 +193,9 @@ public class PlayerListener implements Listener {
                     if (player.hasPermission(Permissions.COMMAND_ADMIN) && "reload".startsWith(prefix)) {
                         event.getSuggestions().add("reload");
                     }
+                    if (player.hasPermission(Permissions.COMMAND_ADMIN) && "migrate".startsWith(prefix)) {
+                        event.getSuggestions().add("migrate");
+                    }
                 }
                 if (args.length == 3 && "del".equals(args[1])) {
                     if ("read".equals(prefix)) {
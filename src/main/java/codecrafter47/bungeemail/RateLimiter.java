@@ -0,0 +1,100 @@
+package codecrafter47.bungeemail;
+
+import net.md_5.bungee.config.Configuration;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per player token buckets limiting how often commands that access the storage can be used.
+ * <p>
+ * Each bucket is a single AtomicLong holding the time at which the bucket will be full again (this is the generic
+ * cell rate algorithm, which behaves exactly like a token bucket). Taking a token is a compare-and-set, so no locks
+ * are involved. Full buckets carry no information and are removed by {@link #cleanup()}.
+ */
+class RateLimiter {
+
+    enum Operation {
+        SEND("send"), DELETE("del"), LIST("list");
+
+        private final String configKey;
+
+        Operation(String configKey) {
+            this.configKey = configKey;
+        }
+    }
+
+    private final Map<Operation, Limit> limits = new EnumMap<>(Operation.class);
+    private final Map<Operation, ConcurrentMap<UUID, AtomicLong>> buckets = new EnumMap<>(Operation.class);
+    private final AtomicLong rejected = new AtomicLong();
+
+    RateLimiter(Configuration config) {
+        for (Operation operation : Operation.values()) {
+            int capacity = config.getInt("rate_limit." + operation.configKey + ".capacity", 0);
+            int perMinute = config.getInt("rate_limit." + operation.configKey + ".per_minute", 0);
+            if (capacity > 0 && perMinute > 0) {
+                limits.put(operation, new Limit(capacity, perMinute));
+                buckets.put(operation, new ConcurrentHashMap<>());
+            }
+        }
+    }
+
+    /**
+     * Takes a token from the players bucket for the given operation.
+     *
+     * @return false if the bucket is empty, i.e. the player should be rejected
+     */
+    boolean tryAcquire(UUID player, Operation operation) {
+        Limit limit = limits.get(operation);
+        if (limit == null) {
+            return true;
+        }
+        AtomicLong bucket = buckets.get(operation).computeIfAbsent(player, uuid -> new AtomicLong(Long.MIN_VALUE));
+        while (true) {
+            long now = System.nanoTime();
+            long full = bucket.get();
+            long start = full == Long.MIN_VALUE || full - now < 0 ? now : full;
+            if (start - now > limit.tolerance) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (bucket.compareAndSet(full, start + limit.interval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes buckets that are full again, so memory usage only depends on the number of recently active players.
+     */
+    void cleanup() {
+        long now = System.nanoTime();
+        for (ConcurrentMap<UUID, AtomicLong> map : buckets.values()) {
+            map.entrySet().removeIf(entry -> entry.getValue().get() - now <= 0);
+        }
+    }
+
+    /**
+     * @return number of rejected commands since the last call of this method
+     */
+    int getAndResetRejected() {
+        return (int) rejected.getAndSet(0);
+    }
+
+    private static class Limit {
+        // time it takes to refill a single token
+        private final long interval;
+        // how far the bucket may be behind, this allows up to capacity commands in a burst
+        private final long tolerance;
+
+        private Limit(int capacity, int perMinute) {
+            interval = TimeUnit.MINUTES.toNanos(1) / perMinute;
+            tolerance = interval * (capacity - 1);
+        }
+    }
+}
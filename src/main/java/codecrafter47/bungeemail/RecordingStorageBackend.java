@@ -0,0 +1,208 @@
+package codecrafter47.bungeemail;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.ToIntFunction;
+
+/**
+ * Wraps the storage backend and emits a {@link MailEvents.StorageCall} Flight Recorder event for each call. Only used
+ * if {@link MailEvents#AVAILABLE}.
+ */
+class RecordingStorageBackend implements IStorageBackend {
+    private final IStorageBackend backend;
+    private final String type;
+
+    RecordingStorageBackend(IStorageBackend backend, String type) {
+        this.backend = backend;
+        this.type = type;
+    }
+
+    private interface Call<T> {
+        T call() throws StorageException;
+    }
+
+    private interface VoidCall {
+        void call() throws StorageException;
+    }
+
+    /**
+     * Runs the call and emits an event for it.
+     *
+     * @param rows number of rows the call returned or affected, derived from its result
+     */
+    private <T> T record(String operation, Call<T> call, ToIntFunction<T> rows) throws StorageException {
+        MailEvents.StorageCall event = new MailEvents.StorageCall();
+        event.begin();
+        T result = null;
+        boolean failed = true;
+        try {
+            result = call.call();
+            failed = false;
+            return result;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = operation;
+                event.backend = type;
+                event.rows = failed ? 0 : rows.applyAsInt(result);
+                event.failed = failed;
+                event.commit();
+            }
+        }
+    }
+
+    private void record(String operation, VoidCall call, int rows) throws StorageException {
+        record(operation, () -> {
+            call.call();
+            return null;
+        }, result -> rows);
+    }
+
+    @Override
+    public List<Message> getMessagesFor(UUID uuid, boolean onlyNew) throws StorageException {
+        return record("getMessagesFor", () -> backend.getMessagesFor(uuid, onlyNew), List::size);
+    }
+
+    @Override
+    public List<Message> searchMessages(UUID recipient, Set<String> tokens) throws StorageException {
+        return record("searchMessages", () -> backend.searchMessages(recipient, tokens), List::size);
+    }
+
+    @Override
+    public void loadInbox(UUID uuid) throws StorageException {
+        record("loadInbox", () -> backend.loadInbox(uuid), 1);
+    }
+
+    @Override
+    public void unloadInbox(UUID uuid) {
+        backend.unloadInbox(uuid);
+    }
+
+    @Override
+    public Message saveMessage(String senderName, UUID senderUUID, UUID recipient, String message, boolean read, long time) throws StorageException {
+        return record("saveMessage", () -> backend.saveMessage(senderName, senderUUID, recipient, message, read, time), result -> 1);
+    }
+
+    @Override
+    public int saveMessageToAll(String senderName, UUID senderUUID, String message, boolean read, long time) throws StorageException {
+        return record("saveMessageToAll", () -> backend.saveMessageToAll(senderName, senderUUID, message, read, time), Integer::intValue);
+    }
+
+    @Override
+    public int saveMessages(String senderName, UUID senderUUID, Collection<UUID> recipients, String message, boolean read, long time) throws StorageException {
+        return record("saveMessages", () -> backend.saveMessages(senderName, senderUUID, recipients, message, read, time), Integer::intValue);
+    }
+
+    @Override
+    public void markRead(Message message) throws StorageException {
+        record("markRead", () -> backend.markRead(message), 1);
+    }
+
+    @Override
+    public void delete(Message message) throws StorageException {
+        record("delete", () -> backend.delete(message), 1);
+    }
+
+    @Override
+    public UUID getUUIDForName(String name) throws StorageException {
+        return record("getUUIDForName", () -> backend.getUUIDForName(name), result -> result != null ? 1 : 0);
+    }
+
+    @Override
+    public Map<String, UUID> getUUIDsForNames(Collection<String> names) throws StorageException {
+        return record("getUUIDsForNames", () -> backend.getUUIDsForNames(names), Map::size);
+    }
+
+    @Override
+    public String getNameForUUID(UUID uuid) throws StorageException {
+        return record("getNameForUUID", () -> backend.getNameForUUID(uuid), result -> result != null ? 1 : 0);
+    }
+
+    @Override
+    public List<Message> getSentMessages(UUID sender, int offset, int limit) throws StorageException {
+        return record("getSentMessages", () -> backend.getSentMessages(sender, offset, limit), List::size);
+    }
+
+    @Override
+    public int countSentMessages(UUID sender) throws StorageException {
+        return record("countSentMessages", () -> backend.countSentMessages(sender), result -> 1);
+    }
+
+    @Override
+    public Collection<UUID> getAllKnownUUIDs() throws StorageException {
+        return record("getAllKnownUUIDs", backend::getAllKnownUUIDs, Collection::size);
+    }
+
+    @Override
+    public Collection<String> getKnownUsernames() throws StorageException {
+        return record("getKnownUsernames", backend::getKnownUsernames, Collection::size);
+    }
+
+    @Override
+    public void updateUserEntry(UUID uuid, String username) throws StorageException {
+        record("updateUserEntry", () -> backend.updateUserEntry(uuid, username), 1);
+    }
+
+    @Override
+    public boolean delete(long id, UUID recipient) throws StorageException {
+        return record("delete", () -> backend.delete(id, recipient), result -> result ? 1 : 0);
+    }
+
+    @Override
+    public void deleteOlder(long time, boolean deleteUnread) throws StorageException {
+        record("deleteOlder", () -> backend.deleteOlder(time, deleteUnread), 0);
+    }
+
+    @Override
+    public List<Message> getOlderRead(long time, int limit) throws StorageException {
+        return record("getOlderRead", () -> backend.getOlderRead(time, limit), List::size);
+    }
+
+    @Override
+    public void deleteMessages(List<? extends Message> messages) throws StorageException {
+        record("deleteMessages", () -> backend.deleteMessages(messages), messages.size());
+    }
+
+    @Override
+    public int countMessages(UUID recipient, boolean onlyNew) throws StorageException {
+        return record("countMessages", () -> backend.countMessages(recipient, onlyNew), result -> 1);
+    }
+
+    @Override
+    public Map<UUID, Integer> countMessages(Collection<UUID> recipients, boolean onlyNew) throws StorageException {
+        return record("countMessages", () -> backend.countMessages(recipients, onlyNew), Map::size);
+    }
+
+    @Override
+    public int deleteOldestRead(UUID recipient, int count) throws StorageException {
+        return record("deleteOldestRead", () -> backend.deleteOldestRead(recipient, count), Integer::intValue);
+    }
+
+    @Override
+    public ExportBatch<Message> exportMessages(String checkpoint, int limit) throws StorageException {
+        return record("exportMessages", () -> backend.exportMessages(checkpoint, limit), result -> result.getEntries().size());
+    }
+
+    @Override
+    public int saveMessages(List<? extends Message> messages) throws StorageException {
+        return record("saveMessages", () -> backend.saveMessages(messages), Integer::intValue);
+    }
+
+    @Override
+    public ExportBatch<Map.Entry<String, UUID>> exportUserEntries(String checkpoint, int limit) throws StorageException {
+        return record("exportUserEntries", () -> backend.exportUserEntries(checkpoint, limit), result -> result.getEntries().size());
+    }
+
+    @Override
+    public void updateUserEntries(Map<String, UUID> entries) throws StorageException {
+        record("updateUserEntries", () -> backend.updateUserEntries(entries), entries.size());
+    }
+
+    @Override
+    public void close() {
+        backend.close();
+    }
+}
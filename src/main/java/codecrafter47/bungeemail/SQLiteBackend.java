@@ -0,0 +1,634 @@
+package codecrafter47.bungeemail;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Stores mails in an embedded SQLite database. There is a single connection to the database, its prepared
+ * statements are created once and reused for all queries.
+ */
+public class SQLiteBackend implements IStorageBackend {
+
+    // maximum number of names per query of getUUIDsForNames
+    private static final int NAME_LOOKUP_BATCH_SIZE = 500;
+
+    private final Connection connection;
+    private final PreparedStatement selectMails;
+    private final PreparedStatement selectNewMails;
+    private final PreparedStatement insertMail;
+    private final PreparedStatement insertMailToAll;
+    private final PreparedStatement updateRead;
+    private final PreparedStatement deleteMail;
+    private final PreparedStatement deleteOlder;
+    private final PreparedStatement deleteOlderRead;
+    private final PreparedStatement selectUUID;
+    private final PreparedStatement selectAllUUIDs;
+    private final PreparedStatement selectAllUsernames;
+    private final PreparedStatement upsertUser;
+    private final PreparedStatement exportMails;
+    private final PreparedStatement exportUsers;
+    private final PreparedStatement searchMails;
+    private final PreparedStatement selectOlderRead;
+    private final PreparedStatement selectName;
+    private final PreparedStatement selectSentMails;
+    private final PreparedStatement countSentMails;
+    private final PreparedStatement countMails;
+    private final PreparedStatement deleteOldestRead;
+    private final InboxCounters counters = new InboxCounters();
+
+    public SQLiteBackend(BungeeMail plugin) {
+        try {
+            Class.forName("org.sqlite.JDBC");
+            connection = DriverManager.getConnection("jdbc:sqlite:" + new File(plugin.getDataFolder(), "mails.db").getAbsolutePath());
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("PRAGMA synchronous=NORMAL");
+                statement.execute("PRAGMA busy_timeout=5000");
+                statement.execute("CREATE TABLE IF NOT EXISTS bungeemail_mails (id INTEGER PRIMARY KEY AUTOINCREMENT, senderName TEXT, senderUUID TEXT, recipient TEXT, message TEXT, `read` INTEGER, `time` INTEGER)");
+                statement.execute("CREATE INDEX IF NOT EXISTS bungeemail_mails_recipient ON bungeemail_mails (recipient, `read`, `time`)");
+                statement.execute("CREATE INDEX IF NOT EXISTS bungeemail_mails_time ON bungeemail_mails (`time`, `read`)");
+                statement.execute("CREATE INDEX IF NOT EXISTS bungeemail_mails_sender ON bungeemail_mails (senderUUID, `time`)");
+                statement.execute("CREATE TABLE IF NOT EXISTS bungeemail_uuids (username TEXT NOT NULL PRIMARY KEY COLLATE NOCASE, uuid TEXT)");
+                statement.execute("CREATE INDEX IF NOT EXISTS bungeemail_uuids_uuid ON bungeemail_uuids (uuid)");
+                // full text index of the mails, kept up to date by triggers
+                boolean createSearchIndex;
+                try (ResultSet rs = statement.executeQuery("select count(*) from sqlite_master where name='bungeemail_mails_fts'")) {
+                    createSearchIndex = rs.next() && rs.getInt(1) == 0;
+                }
+                if (createSearchIndex) {
+                    statement.execute("CREATE VIRTUAL TABLE bungeemail_mails_fts USING fts5(message, content='bungeemail_mails', content_rowid='id')");
+                    statement.execute("INSERT INTO bungeemail_mails_fts(bungeemail_mails_fts) VALUES('rebuild')");
+                }
+                statement.execute("CREATE TRIGGER IF NOT EXISTS bungeemail_mails_fts_insert AFTER INSERT ON bungeemail_mails BEGIN INSERT INTO bungeemail_mails_fts(rowid, message) VALUES (new.id, new.message); END");
+                statement.execute("CREATE TRIGGER IF NOT EXISTS bungeemail_mails_fts_delete AFTER DELETE ON bungeemail_mails BEGIN INSERT INTO bungeemail_mails_fts(bungeemail_mails_fts, rowid, message) VALUES ('delete', old.id, old.message); END");
+            }
+            selectMails = connection.prepareStatement("select * from bungeemail_mails where recipient=? order by id");
+            selectNewMails = connection.prepareStatement("select * from bungeemail_mails where recipient=? and `read`=0 order by id");
+            insertMail = connection.prepareStatement("insert into bungeemail_mails (senderName, senderUUID, recipient, message, `read`, `time`) values(?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+            insertMailToAll = connection.prepareStatement("insert into bungeemail_mails (senderName, senderUUID, recipient, message, `read`, `time`) select distinct ?, ?, uuid, ?, ?, ? from bungeemail_uuids");
+            updateRead = connection.prepareStatement("update bungeemail_mails set `read`=1 where id=?");
+            deleteMail = connection.prepareStatement("delete from bungeemail_mails where id=? and recipient=?");
+            deleteOlder = connection.prepareStatement("delete from bungeemail_mails where `time` < ?");
+            deleteOlderRead = connection.prepareStatement("delete from bungeemail_mails where `time` < ? and `read`=1");
+            selectUUID = connection.prepareStatement("select uuid from bungeemail_uuids where username=?");
+            selectAllUUIDs = connection.prepareStatement("select distinct uuid from bungeemail_uuids");
+            selectAllUsernames = connection.prepareStatement("select username from bungeemail_uuids");
+            exportMails = connection.prepareStatement("select * from bungeemail_mails where id > ? order by id limit ?");
+            exportUsers = connection.prepareStatement("select username, uuid from bungeemail_uuids where username > ? order by username limit ?");
+            searchMails = connection.prepareStatement("select m.* from bungeemail_mails_fts f join bungeemail_mails m on m.id = f.rowid where bungeemail_mails_fts match ? and m.recipient=? order by m.`time` desc, m.id desc");
+            selectOlderRead = connection.prepareStatement("select * from bungeemail_mails where `time` < ? and `read`=1 order by id limit ?");
+            selectName = connection.prepareStatement("select username from bungeemail_uuids where uuid=? limit 1");
+            selectSentMails = connection.prepareStatement("select * from bungeemail_mails where senderUUID=? order by `time` desc, id desc limit ? offset ?");
+            countSentMails = connection.prepareStatement("select count(*) from bungeemail_mails where senderUUID=?");
+            countMails = connection.prepareStatement("select count(*), coalesce(sum(`read`=0), 0) from bungeemail_mails where recipient=?");
+            deleteOldestRead = connection.prepareStatement("delete from bungeemail_mails where id in (select id from bungeemail_mails where recipient=? and `read`=1 order by `time`, id limit ?)");
+            upsertUser = connection.prepareStatement("insert into bungeemail_uuids (username, uuid) values(?, ?) on conflict(username) do update set username=excluded.username, uuid=excluded.uuid");
+        } catch (ClassNotFoundException e) {
+            plugin.getLogger().warning("SQLite setup failed, the SQLite driver that comes with BungeeCord is missing");
+            throw new RuntimeException(e);
+        } catch (SQLException e) {
+            plugin.getLogger().warning("SQLite setup failed");
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private static MySQLBackend.SQLMessage readMessage(ResultSet rs) throws SQLException {
+        String senderName = rs.getString("senderName");
+        UUID senderUUID = UUID.fromString(rs.getString("senderUUID"));
+        UUID recipient = UUID.fromString(rs.getString("recipient"));
+        String message = rs.getString("message");
+        boolean read = rs.getBoolean("read");
+        long time = rs.getLong("time");
+        long id = rs.getLong("id");
+        return new MySQLBackend.SQLMessage(id, senderName, senderUUID, recipient, message, read, time);
+    }
+
+    @Override
+    public void loadInbox(UUID uuid) {
+        // the database is local, reads are served from its page cache
+    }
+
+    @Override
+    public void unloadInbox(UUID uuid) {
+    }
+
+    @Override
+    public synchronized List<Message> searchMessages(UUID recipient, Set<String> tokens) throws StorageException {
+        StringBuilder query = new StringBuilder();
+        for (String token : tokens) {
+            query.append(query.length() == 0 ? "\"" : " \"").append(token).append('"');
+        }
+        try {
+            searchMails.setString(1, query.toString());
+            searchMails.setString(2, recipient.toString());
+            try (ResultSet rs = searchMails.executeQuery()) {
+                List<Message> messages = new ArrayList<>();
+                while (rs.next()) {
+                    MySQLBackend.SQLMessage message = readMessage(rs);
+                    if (SearchTokenizer.matches(message, tokens)) {
+                        messages.add(message);
+                    }
+                }
+                return messages;
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized List<Message> getMessagesFor(UUID uuid, boolean onlyNew) throws StorageException {
+        try {
+            SlowOperationLog.phase("query");
+            PreparedStatement ps = onlyNew ? selectNewMails : selectMails;
+            ps.setString(1, uuid.toString());
+            try (ResultSet rs = ps.executeQuery()) {
+                // sqlite produces rows while they are read, so this includes most of the query time
+                SlowOperationLog.phase("parse");
+                ArrayList<Message> messages = new ArrayList<>();
+                while (rs.next()) {
+                    messages.add(readMessage(rs));
+                }
+                SlowOperationLog.rows(messages.size());
+                return messages;
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized Message saveMessage(String senderName, UUID senderUUID, UUID recipient, String message, boolean read, long time) throws StorageException {
+        try {
+            insertMail.setString(1, senderName);
+            insertMail.setString(2, senderUUID.toString());
+            insertMail.setString(3, recipient.toString());
+            insertMail.setString(4, message);
+            insertMail.setBoolean(5, read);
+            insertMail.setLong(6, time);
+            int affectedRows = insertMail.executeUpdate();
+            if (affectedRows != 1) {
+                throw new StorageException("Saving mail failed. " + affectedRows + " rows inserted. But should be 1");
+            }
+            try (ResultSet rs = insertMail.getGeneratedKeys()) {
+                if (rs.next()) {
+                    counters.added(recipient, read);
+                    return new MySQLBackend.SQLMessage(rs.getLong(1), senderName, senderUUID, recipient, message, read, time);
+                } else {
+                    throw new StorageException("Saving mail failed. Generated key not available");
+                }
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized int saveMessageToAll(String senderName, UUID senderUUID, String message, boolean read, long time) throws StorageException {
+        try {
+            insertMailToAll.setString(1, senderName);
+            insertMailToAll.setString(2, senderUUID.toString());
+            insertMailToAll.setString(3, message);
+            insertMailToAll.setBoolean(4, read);
+            insertMailToAll.setLong(5, time);
+            int count = insertMailToAll.executeUpdate();
+            counters.invalidateAll();
+            return count;
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized int saveMessages(String senderName, UUID senderUUID, Collection<UUID> recipients, String message, boolean read, long time) throws StorageException {
+        if (recipients.isEmpty()) {
+            return 0;
+        }
+        try {
+            connection.setAutoCommit(false);
+            try {
+                for (UUID recipient : recipients) {
+                    insertMail.setString(1, senderName);
+                    insertMail.setString(2, senderUUID.toString());
+                    insertMail.setString(3, recipient.toString());
+                    insertMail.setString(4, message);
+                    insertMail.setBoolean(5, read);
+                    insertMail.setLong(6, time);
+                    insertMail.addBatch();
+                }
+                insertMail.executeBatch();
+                connection.commit();
+                for (UUID recipient : recipients) {
+                    counters.added(recipient, read);
+                }
+                return recipients.size();
+            } catch (SQLException e) {
+                insertMail.clearBatch();
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized void markRead(Message message) throws StorageException {
+        Preconditions.checkArgument(message instanceof MySQLBackend.SQLMessage);
+        try {
+            updateRead.setLong(1, message.getId());
+            if (updateRead.executeUpdate() == 0) {
+                throw new StorageException("Tried to read non-existent mail");
+            }
+            if (!message.isRead()) {
+                counters.markedRead(message.getRecipient());
+            }
+            ((MySQLBackend.SQLMessage) message).setRead(true);
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized void delete(Message message) throws StorageException {
+        deleteRow(message.getId(), message.getRecipient());
+        counters.removed(message.getRecipient(), message.isRead(), 1);
+    }
+
+    @Override
+    public synchronized boolean delete(long id, UUID recipient) throws StorageException {
+        deleteRow(id, recipient);
+        counters.invalidate(recipient);
+        return true;
+    }
+
+    private void deleteRow(long id, UUID recipient) throws StorageException {
+        try {
+            deleteMail.setLong(1, id);
+            deleteMail.setString(2, recipient.toString());
+            if (deleteMail.executeUpdate() == 0) {
+                throw new StorageException("Tried to delete non-existent mail");
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized void deleteOlder(long time, boolean deleteUnread) throws StorageException {
+        try {
+            PreparedStatement ps = deleteUnread ? deleteOlder : deleteOlderRead;
+            ps.setLong(1, time);
+            ps.executeUpdate();
+            counters.invalidateAll();
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized List<Message> getOlderRead(long time, int limit) throws StorageException {
+        try {
+            selectOlderRead.setLong(1, time);
+            selectOlderRead.setInt(2, limit);
+            try (ResultSet rs = selectOlderRead.executeQuery()) {
+                List<Message> messages = new ArrayList<>();
+                while (rs.next()) {
+                    messages.add(readMessage(rs));
+                }
+                return messages;
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized void deleteMessages(List<? extends Message> messages) throws StorageException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        try {
+            connection.setAutoCommit(false);
+            try {
+                for (Message message : messages) {
+                    deleteMail.setLong(1, message.getId());
+                    deleteMail.setString(2, message.getRecipient().toString());
+                    deleteMail.addBatch();
+                }
+                deleteMail.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+        for (Message message : messages) {
+            counters.invalidate(message.getRecipient());
+        }
+    }
+
+    @Override
+    public synchronized int countMessages(UUID recipient, boolean onlyNew) throws StorageException {
+        return counters.get(recipient, onlyNew, this::loadCounts);
+    }
+
+    @Override
+    public synchronized Map<UUID, Integer> countMessages(Collection<UUID> recipients, boolean onlyNew) throws StorageException {
+        return counters.getAll(recipients, onlyNew, this::loadCounts);
+    }
+
+    private Map<UUID, int[]> loadCounts(List<UUID> recipients) throws StorageException {
+        try (PreparedStatement ps = connection.prepareStatement("select recipient, count(*), coalesce(sum(`read`=0), 0) from bungeemail_mails where recipient in (" + String.join(",", Collections.nCopies(recipients.size(), "?")) + ") group by recipient")) {
+            for (int i = 0; i < recipients.size(); i++) {
+                ps.setString(i + 1, recipients.get(i).toString());
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                Map<UUID, int[]> counts = new HashMap<>();
+                while (rs.next()) {
+                    counts.put(UUID.fromString(rs.getString(1)), new int[]{rs.getInt(2), rs.getInt(3)});
+                }
+                return counts;
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    private int[] loadCounts(UUID recipient) throws StorageException {
+        try {
+            countMails.setString(1, recipient.toString());
+            try (ResultSet rs = countMails.executeQuery()) {
+                rs.next();
+                return new int[]{rs.getInt(1), rs.getInt(2)};
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized int deleteOldestRead(UUID recipient, int count) throws StorageException {
+        try {
+            deleteOldestRead.setString(1, recipient.toString());
+            deleteOldestRead.setInt(2, count);
+            int deleted = deleteOldestRead.executeUpdate();
+            counters.removed(recipient, true, deleted);
+            return deleted;
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized UUID getUUIDForName(String name) throws StorageException {
+        if ("Console".equals(name)) {
+            return BungeeMail.CONSOLE_UUID;
+        }
+        try {
+            selectUUID.setString(1, name);
+            try (ResultSet rs = selectUUID.executeQuery()) {
+                if (rs.next()) {
+                    return UUID.fromString(rs.getString("uuid"));
+                }
+                return null;
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized Map<String, UUID> getUUIDsForNames(Collection<String> names) throws StorageException {
+        Map<String, UUID> result = new HashMap<>();
+        // the name as passed in for each name returned by the database, which may differ in case
+        Map<String, String> requested = new TreeMap<>(CaseInsensitiveComparator.INSTANCE);
+        for (String name : names) {
+            if ("Console".equals(name)) {
+                result.put(name, BungeeMail.CONSOLE_UUID);
+            } else {
+                requested.put(name, name);
+            }
+        }
+        for (List<String> batch : Lists.partition(new ArrayList<>(requested.keySet()), NAME_LOOKUP_BATCH_SIZE)) {
+            try (PreparedStatement ps = connection.prepareStatement("select username, uuid from bungeemail_uuids where username in (" + String.join(",", Collections.nCopies(batch.size(), "?")) + ")")) {
+                for (int i = 0; i < batch.size(); i++) {
+                    ps.setString(i + 1, batch.get(i));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String name = requested.get(rs.getString("username"));
+                        if (name != null) {
+                            result.put(name, UUID.fromString(rs.getString("uuid")));
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                throw new StorageException(e);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized String getNameForUUID(UUID uuid) throws StorageException {
+        if (BungeeMail.CONSOLE_UUID.equals(uuid)) {
+            return "Console";
+        }
+        try {
+            selectName.setString(1, uuid.toString());
+            try (ResultSet rs = selectName.executeQuery()) {
+                return rs.next() ? rs.getString("username") : null;
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized List<Message> getSentMessages(UUID sender, int offset, int limit) throws StorageException {
+        try {
+            selectSentMails.setString(1, sender.toString());
+            selectSentMails.setInt(2, limit);
+            selectSentMails.setInt(3, offset);
+            try (ResultSet rs = selectSentMails.executeQuery()) {
+                List<Message> messages = new ArrayList<>();
+                while (rs.next()) {
+                    messages.add(readMessage(rs));
+                }
+                return messages;
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized int countSentMessages(UUID sender) throws StorageException {
+        try {
+            countSentMails.setString(1, sender.toString());
+            try (ResultSet rs = countSentMails.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized Collection<UUID> getAllKnownUUIDs() throws StorageException {
+        try (ResultSet rs = selectAllUUIDs.executeQuery()) {
+            Collection<UUID> uuids = new ArrayList<>();
+            while (rs.next()) {
+                uuids.add(UUID.fromString(rs.getString("uuid")));
+            }
+            return Collections.unmodifiableCollection(uuids);
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized Collection<String> getKnownUsernames() throws StorageException {
+        try (ResultSet rs = selectAllUsernames.executeQuery()) {
+            Collection<String> names = new ArrayList<>();
+            while (rs.next()) {
+                names.add(rs.getString("username"));
+            }
+            return Collections.unmodifiableCollection(names);
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized void updateUserEntry(UUID uuid, String username) throws StorageException {
+        try {
+            upsertUser.setString(1, username);
+            upsertUser.setString(2, uuid.toString());
+            upsertUser.execute();
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized ExportBatch<Message> exportMessages(String checkpoint, int limit) throws StorageException {
+        long lastId = checkpoint == null ? 0 : Long.parseLong(checkpoint);
+        try {
+            exportMails.setLong(1, lastId);
+            exportMails.setInt(2, limit);
+            try (ResultSet rs = exportMails.executeQuery()) {
+                List<Message> messages = new ArrayList<>();
+                while (rs.next()) {
+                    Message message = readMessage(rs);
+                    messages.add(message);
+                    lastId = message.getId();
+                }
+                return new ExportBatch<>(messages, Long.toString(lastId));
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized int saveMessages(List<? extends Message> messages) throws StorageException {
+        if (messages.isEmpty()) {
+            return 0;
+        }
+        try {
+            connection.setAutoCommit(false);
+            try {
+                for (Message message : messages) {
+                    insertMail.setString(1, message.getSenderName());
+                    insertMail.setString(2, message.getSenderUUID().toString());
+                    insertMail.setString(3, message.getRecipient().toString());
+                    insertMail.setString(4, message.getMessage());
+                    insertMail.setBoolean(5, message.isRead());
+                    insertMail.setLong(6, message.getTime());
+                    insertMail.addBatch();
+                }
+                insertMail.executeBatch();
+                connection.commit();
+                for (Message message : messages) {
+                    counters.invalidate(message.getRecipient());
+                }
+                return messages.size();
+            } catch (SQLException e) {
+                insertMail.clearBatch();
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized ExportBatch<Map.Entry<String, UUID>> exportUserEntries(String checkpoint, int limit) throws StorageException {
+        String lastName = checkpoint == null ? "" : checkpoint;
+        try {
+            exportUsers.setString(1, lastName);
+            exportUsers.setInt(2, limit);
+            try (ResultSet rs = exportUsers.executeQuery()) {
+                List<Map.Entry<String, UUID>> entries = new ArrayList<>();
+                while (rs.next()) {
+                    lastName = rs.getString("username");
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(lastName, UUID.fromString(rs.getString("uuid"))));
+                }
+                return new ExportBatch<>(entries, lastName);
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized void updateUserEntries(Map<String, UUID> entries) throws StorageException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        try {
+            connection.setAutoCommit(false);
+            try {
+                for (Map.Entry<String, UUID> entry : entries.entrySet()) {
+                    upsertUser.setString(1, entry.getKey());
+                    upsertUser.setString(2, entry.getValue().toString());
+                    upsertUser.addBatch();
+                }
+                upsertUser.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                upsertUser.clearBatch();
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package codecrafter47.bungeemail;
+
+import codecrafter47.util.chat.ChatUtil;
+
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Splits mails and search queries into lower case words. All backends use this to decide whether a mail matches a
+ * search, so results are the same regardless of how the backend indexes the mails.
+ */
+final class SearchTokenizer {
+    private static final Pattern SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    // shorter words are not in the MySQL full text index (innodb_ft_min_token_size)
+    static final int MIN_QUERY_TOKEN_LENGTH = 3;
+
+    private SearchTokenizer() {
+    }
+
+    static Set<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        for (String token : SEPARATOR.split(ChatUtil.stripBBCode(text).toLowerCase(Locale.ROOT))) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Splits a search query into words, ignoring words shorter than {@link #MIN_QUERY_TOKEN_LENGTH}.
+     */
+    static Set<String> tokenizeQuery(String query) {
+        Set<String> tokens = tokenize(query);
+        tokens.removeIf(token -> token.length() < MIN_QUERY_TOKEN_LENGTH);
+        return tokens;
+    }
+
+    /**
+     * @return true if the mail contains all of the given tokens
+     */
+    static boolean matches(Message message, Set<String> tokens) {
+        return tokenize(message.getMessage()).containsAll(tokens);
+    }
+}
@@ -0,0 +1,107 @@
+package codecrafter47.bungeemail;
+
+import codecrafter47.util.chat.ChatUtil;
+import net.md_5.bungee.api.CommandSender;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+/**
+ * Sends a mail to all known players in the background. Mails are saved in chunks of sendall_chunk_size, so the
+ * storage backend is never busy with a single huge insert. Only one job can run at a time.
+ */
+class SendAllJob implements Runnable {
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+    private static final AtomicReference<SendAllJob> running = new AtomicReference<>();
+
+    private final BungeeMail plugin;
+    private final CommandSender sender;
+    private final String senderName;
+    private final UUID senderUUID;
+    private final String text;
+    private final long time;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param sender     receives the progress of the job
+     * @param senderName the name shown as the sender of the mails
+     */
+    SendAllJob(BungeeMail plugin, CommandSender sender, String senderName, UUID senderUUID, String text, long time) {
+        this.plugin = plugin;
+        this.sender = sender;
+        this.senderName = senderName;
+        this.senderUUID = senderUUID;
+        this.text = text;
+        this.time = time;
+    }
+
+    /**
+     * Starts the job in the background.
+     *
+     * @return false if another job is already running
+     */
+    boolean start() {
+        if (!running.compareAndSet(null, this)) {
+            return false;
+        }
+        plugin.getProxy().getScheduler().runAsync(plugin, this);
+        return true;
+    }
+
+    /**
+     * Cancels the running job. Mails that have already been saved are not removed.
+     *
+     * @return false if no job is running
+     */
+    static boolean cancelRunning() {
+        SendAllJob job = running.get();
+        if (job == null) {
+            return false;
+        }
+        job.cancelled = true;
+        return true;
+    }
+
+    @Override
+    public void run() {
+        int count = 0;
+        try {
+            IStorageBackend storage = plugin.getStorage();
+            List<UUID> recipients = new ArrayList<>(storage.getAllKnownUUIDs());
+            if (!recipients.contains(BungeeMail.CONSOLE_UUID)) {
+                recipients.add(BungeeMail.CONSOLE_UUID);
+            }
+            int chunkSize = Math.max(1, plugin.config.getInt("sendall_chunk_size", 500));
+            long lastReport = System.currentTimeMillis();
+            for (int i = 0; i < recipients.size() && !cancelled; i += chunkSize) {
+                count += storage.saveMessages(senderName, senderUUID, recipients.subList(i, Math.min(i + chunkSize, recipients.size())), text, false, time);
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= PROGRESS_INTERVAL) {
+                    lastReport = now;
+                    sender.sendMessage(ChatUtil.parseBBCode(plugin.messages.sendallProgress
+                            .replace("%num%", Integer.toString(count))
+                            .replace("%max%", Integer.toString(recipients.size()))));
+                }
+            }
+            if (cancelled) {
+                sender.sendMessage(ChatUtil.parseBBCode(plugin.messages.sendallCancelled.replace("%num%", Integer.toString(count))));
+            } else {
+                sender.sendMessage(ChatUtil.parseBBCode(plugin.messages.messageSentToAll.replace("%num%", Integer.toString(count))));
+            }
+        } catch (StorageException e) {
+            plugin.getLogger().log(Level.WARNING, "Unable to save mail", e);
+            sender.sendMessage(ChatUtil.parseBBCode(plugin.messages.commandError.replace("%error%", e.getMessage())));
+        } finally {
+            running.set(null);
+        }
+
+        if (count > 0) {
+            plugin.broadcastNewMailNotification(plugin.getProxy().getPlayers());
+            plugin.getProxy().getConsole().sendMessage(ChatUtil.parseBBCode(plugin.messages.receivedNewMessage));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package codecrafter47.bungeemail;
+
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+
+/**
+ * Shows the new mail notification after a player switched servers. Notifications are debounced, so a player
+ * switching servers several times in a row is only notified once, after the last switch. Due notifications are
+ * collected and their new mail counts are fetched with a single query. Players are not notified again if the number
+ * of new mails didn't change since the last notification and they haven't listed or searched their mails since.
+ */
+class ServerSwitchNotifier {
+
+    private final BungeeMail plugin;
+    private final long delay;
+
+    private final ConcurrentMap<UUID, Pending> pending = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, Integer> lastShown = new ConcurrentHashMap<>();
+
+    /**
+     * @param delay time in milliseconds after the last server switch until the player is notified
+     */
+    ServerSwitchNotifier(BungeeMail plugin, long delay) {
+        this.plugin = plugin;
+        this.delay = delay;
+    }
+
+    void switched(ProxiedPlayer player) {
+        pending.put(player.getUniqueId(), new Pending(player, System.currentTimeMillis() + delay));
+    }
+
+    /**
+     * Remember that the player has been notified about the given number of new mails.
+     */
+    void shown(UUID uuid, int newMails) {
+        lastShown.put(uuid, newMails);
+    }
+
+    /**
+     * Forget the number of new mails the player has been notified about, as they have just been shown their mails.
+     */
+    void listed(UUID uuid) {
+        lastShown.remove(uuid);
+    }
+
+    void disconnected(UUID uuid) {
+        pending.remove(uuid);
+        lastShown.remove(uuid);
+    }
+
+    /**
+     * Notifies all players whose last server switch is longer ago than the delay. Runs periodically.
+     */
+    void flush() {
+        long now = System.currentTimeMillis();
+        Map<UUID, ProxiedPlayer> due = new HashMap<>();
+        for (Map.Entry<UUID, Pending> entry : pending.entrySet()) {
+            if (entry.getValue().due <= now && pending.remove(entry.getKey(), entry.getValue())) {
+                due.put(entry.getKey(), entry.getValue().player);
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+        try (SlowOperationLog.Trace ignored = plugin.slowOperationLog.start("server switch notification", null)) {
+            SlowOperationLog.rows(due.size());
+            notifyDue(due);
+        }
+    }
+
+    private void notifyDue(Map<UUID, ProxiedPlayer> due) {
+        Map<UUID, Integer> counts;
+        SlowOperationLog.phase("countMessages");
+        try {
+            counts = plugin.getStorage().countMessages(due.keySet(), true);
+        } catch (StorageException e) {
+            plugin.getLogger().log(Level.WARNING, "Failed to show mail notification to " + due.size() + " players", e);
+            return;
+        }
+        SlowOperationLog.phase("notify");
+        for (ProxiedPlayer player : due.values()) {
+            int newMails = counts.getOrDefault(player.getUniqueId(), 0);
+            Integer previous = lastShown.put(player.getUniqueId(), newMails);
+            if (newMails == 0 || (previous != null && previous == newMails) || !player.isConnected()) {
+                continue;
+            }
+            if (plugin.config.getBoolean("showMailsOnLogin")) {
+                try {
+                    plugin.listMessages(player, 1, false, false);
+                } catch (StorageException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Failed to show mails to player", e);
+                }
+            } else {
+                plugin.showLoginInfo(player, newMails);
+            }
+        }
+    }
+
+    private static class Pending {
+        private final ProxiedPlayer player;
+        private final long due;
+
+        private Pending(ProxiedPlayer player, long due) {
+            this.player = player;
+            this.due = due;
+        }
+    }
+}
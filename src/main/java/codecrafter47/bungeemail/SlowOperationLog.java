@@ -0,0 +1,124 @@
+package codecrafter47.bungeemail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Logs commands and listener paths that take longer than slow_operation_threshold milliseconds, together with the
+ * time spent in each phase.
+ * <p>
+ * An operation is traced on the thread it runs on. Code further down, e.g. in the storage backends, marks the start of
+ * a new phase with {@link #phase(String)}, all time until the next mark is attributed to that phase. Marking a phase
+ * costs a call to {@link System#nanoTime()} while an operation is traced and a thread local lookup otherwise. The
+ * breakdown is only formatted if the operation turned out to be slow.
+ */
+class SlowOperationLog {
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+
+    private final BungeeMail plugin;
+
+    SlowOperationLog(BungeeMail plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Starts tracing an operation on the current thread. The returned trace must be closed by the same thread.
+     *
+     * @return the trace, or null if the slow operation log is disabled
+     */
+    Trace start(String operation, String player) {
+        long threshold = plugin.config.getLong("slow_operation_threshold", 0);
+        if (threshold <= 0) {
+            return null;
+        }
+        Trace trace = new Trace(this, CURRENT.get(), operation, player, TimeUnit.MILLISECONDS.toNanos(threshold));
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * Marks the start of a new phase of the operation traced on the current thread, if any.
+     */
+    static void phase(String name) {
+        Trace trace = CURRENT.get();
+        if (trace != null) {
+            trace.phase(name);
+        }
+    }
+
+    /**
+     * Adds to the number of rows (mails, players) processed by the operation traced on the current thread, if any.
+     */
+    static void rows(int rows) {
+        Trace trace = CURRENT.get();
+        if (trace != null) {
+            trace.rows += rows;
+        }
+    }
+
+    private void log(Trace trace, long total) {
+        StringBuilder message = new StringBuilder("Slow operation: ").append(trace.operation);
+        if (trace.player != null) {
+            message.append(" by ").append(trace.player);
+        }
+        message.append(" took ").append(TimeUnit.NANOSECONDS.toMillis(total)).append("ms")
+                .append(" (backend=").append(plugin.getStorageType())
+                .append(", rows=").append(trace.rows).append(")");
+        String separator = " [";
+        for (Map.Entry<String, long[]> entry : trace.phases.entrySet()) {
+            message.append(separator).append(entry.getKey()).append('=')
+                    .append(TimeUnit.NANOSECONDS.toMillis(entry.getValue()[0])).append("ms");
+            separator = ", ";
+        }
+        if (!trace.phases.isEmpty()) {
+            message.append(']');
+        }
+        plugin.getLogger().log(Level.WARNING, message.toString());
+    }
+
+    static class Trace implements AutoCloseable {
+        private final SlowOperationLog log;
+        private final Trace parent;
+        private final String operation;
+        private final String player;
+        private final long threshold;
+        private final long start;
+        private final Map<String, long[]> phases = new LinkedHashMap<>();
+        private String phase = "other";
+        private long phaseStart;
+        private int rows = 0;
+
+        private Trace(SlowOperationLog log, Trace parent, String operation, String player, long threshold) {
+            this.log = log;
+            this.parent = parent;
+            this.operation = operation;
+            this.player = player;
+            this.threshold = threshold;
+            this.start = this.phaseStart = System.nanoTime();
+        }
+
+        private void phase(String name) {
+            long now = System.nanoTime();
+            phases.computeIfAbsent(phase, key -> new long[1])[0] += now - phaseStart;
+            phase = name;
+            phaseStart = now;
+        }
+
+        @Override
+        public void close() {
+            long now = System.nanoTime();
+            if (parent != null) {
+                CURRENT.set(parent);
+            } else {
+                CURRENT.remove();
+            }
+            long total = now - start;
+            if (total >= threshold) {
+                phase(phase);
+                log.log(this, total);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package codecrafter47.bungeemail;
+
+import codecrafter47.util.chat.ChatUtil;
+import net.md_5.bungee.api.CommandSender;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Copies all mails and the uuid map from one storage backend to another in batches, so memory usage does not
+ * depend on the amount of data. Progress is written to a checkpoint file after each batch, if the migration is
+ * interrupted it continues where it stopped the next time it is started. After an interruption the last batch
+ * may be copied twice.
+ */
+class StorageMigration implements Runnable {
+    static final List<String> STORAGE_TYPES = Arrays.asList("flatfile", "mysql", "sqlite");
+
+    private static final int MAIL_BATCH_SIZE = 1000;
+    private static final int USER_BATCH_SIZE = 10000;
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+    private static final AtomicBoolean running = new AtomicBoolean(false);
+
+    private final BungeeMail plugin;
+    private final CommandSender sender;
+    private final String sourceType;
+    private final String targetType;
+    private final boolean restart;
+    private final File checkpointFile;
+
+    StorageMigration(BungeeMail plugin, CommandSender sender, String sourceType, String targetType, boolean restart) {
+        this.plugin = plugin;
+        this.sender = sender;
+        this.sourceType = sourceType;
+        this.targetType = targetType;
+        this.restart = restart;
+        this.checkpointFile = new File(plugin.getDataFolder(), "migration-" + sourceType + "-" + targetType + ".properties");
+    }
+
+    /**
+     * Starts the migration in the background.
+     *
+     * @return false if another migration is already running
+     */
+    boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        plugin.getProxy().getScheduler().runAsync(plugin, this);
+        return true;
+    }
+
+    @Override
+    public void run() {
+        IStorageBackend source = null;
+        IStorageBackend target = null;
+        try {
+            source = openStorage(sourceType);
+            target = openStorage(targetType);
+            Properties checkpoint = loadCheckpoint();
+            if (unwrap(source) instanceof FlatFileBackend) {
+                // only mails that have been written to disk are exported
+                ((FlatFileBackend) unwrap(source)).saveData();
+            }
+
+            long startTime = System.currentTimeMillis();
+            long users = Long.parseLong(checkpoint.getProperty("migratedUsers", "0"));
+            ExportBatch<Map.Entry<String, UUID>> userBatch;
+            while (!(userBatch = source.exportUserEntries(checkpoint.getProperty("users"), USER_BATCH_SIZE)).isLast()) {
+                Map<String, UUID> entries = new LinkedHashMap<>();
+                for (Map.Entry<String, UUID> entry : userBatch.getEntries()) {
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+                target.updateUserEntries(entries);
+                users += entries.size();
+                checkpoint.setProperty("users", userBatch.getCheckpoint());
+                checkpoint.setProperty("migratedUsers", Long.toString(users));
+                saveCheckpoint(checkpoint);
+            }
+            report("Migrated " + users + " users, migrating mails...");
+
+            long mails = Long.parseLong(checkpoint.getProperty("migratedMails", "0"));
+            long migratedThisRun = 0;
+            long lastReport = System.currentTimeMillis();
+            ExportBatch<Message> mailBatch;
+            while (!(mailBatch = source.exportMessages(checkpoint.getProperty("mails"), MAIL_BATCH_SIZE)).isLast()) {
+                target.saveMessages(mailBatch.getEntries());
+                if (unwrap(target) instanceof FlatFileBackend) {
+                    // write the batch and evict inboxes to keep memory usage bounded
+                    ((FlatFileBackend) unwrap(target)).saveData();
+                }
+                mails += mailBatch.getEntries().size();
+                migratedThisRun += mailBatch.getEntries().size();
+                checkpoint.setProperty("mails", mailBatch.getCheckpoint());
+                checkpoint.setProperty("migratedMails", Long.toString(mails));
+                saveCheckpoint(checkpoint);
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= PROGRESS_INTERVAL) {
+                    lastReport = now;
+                    report("Migrated " + mails + " mails (" + rate(migratedThisRun, now - startTime) + " mails/s)");
+                }
+            }
+            long duration = System.currentTimeMillis() - startTime;
+            report("Migration from " + sourceType + " to " + targetType + " finished: " + users + " users and " + mails + " mails in " + TimeUnit.MILLISECONDS.toSeconds(duration) + "s (" + rate(migratedThisRun, duration) + " mails/s)");
+            if (!checkpointFile.delete()) {
+                plugin.getLogger().warning("Failed to delete " + checkpointFile);
+            }
+        } catch (StorageException | IOException | RuntimeException e) {
+            plugin.getLogger().log(Level.SEVERE, "Migration from " + sourceType + " to " + targetType + " failed", e);
+            report("&cMigration failed: " + e.getMessage() + ". Run the command again to continue where it stopped.");
+        } finally {
+            if (source != null && source != plugin.getStorage()) {
+                source.close();
+            }
+            if (target != null && target != plugin.getStorage()) {
+                target.close();
+            }
+            running.set(false);
+        }
+    }
+
+    private IStorageBackend openStorage(String type) throws StorageException {
+        if (type.equals(plugin.getStorageType())) {
+            return plugin.getStorage();
+        }
+        return plugin.openStorage(type);
+    }
+
+    /**
+     * @return the backend itself if the storage is the running storage, which may be wrapped
+     */
+    private IStorageBackend unwrap(IStorageBackend storage) {
+        return storage == plugin.getStorage() ? plugin.getStorageBackend() : storage;
+    }
+
+    private Properties loadCheckpoint() throws IOException {
+        Properties checkpoint = new Properties();
+        if (checkpointFile.exists() && !restart) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(checkpointFile), "UTF-8")) {
+                checkpoint.load(reader);
+            }
+            report("Continuing migration from " + sourceType + " to " + targetType + " at " + checkpoint.getProperty("migratedMails", "0") + " mails");
+        } else {
+            report("Starting migration from " + sourceType + " to " + targetType);
+        }
+        return checkpoint;
+    }
+
+    private void saveCheckpoint(Properties checkpoint) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(checkpointFile), "UTF-8")) {
+            checkpoint.store(writer, "BungeeMail migration from " + sourceType + " to " + targetType);
+        }
+    }
+
+    private static long rate(long count, long millis) {
+        return millis > 0 ? count * 1000 / millis : count;
+    }
+
+    private void report(String message) {
+        plugin.getLogger().info(ChatUtil.stripBBCode(message));
+        if (sender != plugin.getProxy().getConsole()) {
+            sender.sendMessage(ChatUtil.parseBBCode("&aBungeeMail: &f" + message));
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package codecrafter47.bungeemail;
 
 import net.md_5.bungee.api.connection.ProxiedPlayer;
-import net.md_5.bungee.api.plugin.Plugin;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -12,28 +11,39 @@ import java.util.logging.Level;
 
 public class TabCompleteCache {
 
-    private final Plugin plugin;
-    private final IStorageBackend backend;
+    private final BungeeMail plugin;
 
     private ArrayList<String> sortedNames = new ArrayList<>();
 
-    public TabCompleteCache(Plugin plugin, final IStorageBackend backend) {
+    public TabCompleteCache(BungeeMail plugin) {
         this.plugin = plugin;
-        this.backend = backend;
-        updateCache(0);
+        plugin.whenStorageReady(() -> updateCache(0));
     }
 
     private void updateCache(final int wait) {
         plugin.getProxy().getScheduler().schedule(plugin, () -> {
-            ArrayList<String> usernames;
+            MailEvents.TabCompleteRefresh event = null;
+            if (MailEvents.AVAILABLE) {
+                event = new MailEvents.TabCompleteRefresh();
+                event.begin();
+            }
+            ArrayList<String> usernames = null;
             try {
-                usernames = new ArrayList<>(backend.getKnownUsernames());
+                usernames = new ArrayList<>(plugin.getStorage().getKnownUsernames());
+                usernames.sort(CaseInsensitiveComparator.INSTANCE);
+                sortedNames = usernames;
             } catch (StorageException e) {
                 plugin.getLogger().log(Level.WARNING, "Failed to get tab completion data", e);
-                return;
+            } finally {
+                if (event != null) {
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.names = usernames != null ? usernames.size() : 0;
+                        event.failed = usernames == null;
+                        event.commit();
+                    }
+                }
             }
-            usernames.sort(CaseInsensitiveComparator.INSTANCE);
-            sortedNames = usernames;
         }, wait, TimeUnit.MINUTES);
     }
 
@@ -0,0 +1,107 @@
+package codecrafter47.bungeemail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel holding entries that expire at a given time.
+ * <p>
+ * Each wheel has a fixed number of buckets, each covering one tick. Entries expiring further in the future than the
+ * wheel covers go to an overflow wheel whose tick is the whole span of this wheel, the overflow wheels are created
+ * when needed. Adding an entry and advancing by one tick take constant time regardless of the number of entries, when
+ * the time reaches a bucket of an overflow wheel its entries are moved down to the finer wheels.
+ * <p>
+ * Not thread safe.
+ */
+class TimingWheel<T> {
+    private final long tick;
+    private final int size;
+    private final long interval;
+    private final List<Entry<T>>[] buckets;
+    // start of the current tick
+    private long currentTime;
+    private TimingWheel<T> overflow;
+
+    /**
+     * @param tick      time covered by a single bucket in milliseconds
+     * @param size      number of buckets
+     * @param startTime current time in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    TimingWheel(long tick, int size, long startTime) {
+        this.tick = tick;
+        this.size = size;
+        this.interval = tick * size;
+        this.buckets = new List[size];
+        this.currentTime = startTime - startTime % tick;
+    }
+
+    /**
+     * Adds an entry to the wheel.
+     *
+     * @return false if the entry is already due, it has not been added in that case
+     */
+    boolean add(T value, long expiration) {
+        return add(new Entry<>(value, expiration));
+    }
+
+    private boolean add(Entry<T> entry) {
+        if (entry.expiration < currentTime + tick) {
+            return false;
+        }
+        if (entry.expiration < currentTime + interval) {
+            int index = bucket(entry.expiration);
+            if (buckets[index] == null) {
+                buckets[index] = new ArrayList<>();
+            }
+            buckets[index].add(entry);
+            return true;
+        }
+        if (overflow == null) {
+            overflow = new TimingWheel<>(interval, size, currentTime);
+        }
+        return overflow.add(entry);
+    }
+
+    /**
+     * Advances the wheel to the given time.
+     *
+     * @param due receives the entries that have become due
+     */
+    void advance(long time, List<T> due) {
+        advance(time, due, this);
+    }
+
+    private void advance(long time, List<T> due, TimingWheel<T> root) {
+        while (currentTime + tick <= time) {
+            currentTime += tick;
+            if (overflow != null) {
+                overflow.advance(currentTime, due, root);
+            }
+            int index = bucket(currentTime);
+            List<Entry<T>> bucket = buckets[index];
+            if (bucket != null) {
+                buckets[index] = null;
+                for (Entry<T> entry : bucket) {
+                    if (!root.add(entry)) {
+                        due.add(entry.value);
+                    }
+                }
+            }
+        }
+    }
+
+    private int bucket(long time) {
+        return (int) ((time / tick) % size);
+    }
+
+    private static class Entry<T> {
+        private final T value;
+        private final long expiration;
+
+        private Entry(T value, long expiration) {
+            this.value = value;
+            this.expiration = expiration;
+        }
+    }
+}